@@ -15,3 +15,19 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# Strip verbose and debug logging, payload dumps included, from release
+# builds. The transport only passes ready values to these calls, or
+# asks SocketLog.isLoggable() first for one that is costly to get, so
+# nothing is left to compute once the call is gone. In the demo screens
+# an argument with side effects, like a readLine(), still runs.
+-assumenosideeffects class scut.carson_ho.socket_carson.service.SocketLog {
+    public static void v(...);
+    public static void d(...);
+    public static void dumpReceived(...);
+    public static void dumpSent(...);
+}
+-assumenosideeffects class android.util.Log {
+    public static int v(...);
+    public static int d(...);
+}
@@ -0,0 +1,19 @@
+package scut.carson_ho.socket_carson;
+
+import android.util.Log;
+
+import scut.carson_ho.socket_carson.service.SocketLog;
+
+/**
+ * Sends the logging of the transport core to logcat.
+ */
+public class AndroidLogSink implements SocketLog.Sink {
+
+    @Override
+    public void log(int priority, String tag, String msg, Throwable tr) {
+        if (tr != null) {
+            msg = msg + '\n' + Log.getStackTraceString(tr);
+        }
+        Log.println(priority, tag, msg);
+    }
+}
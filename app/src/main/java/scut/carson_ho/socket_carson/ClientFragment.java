@@ -1,18 +1,25 @@
 package scut.carson_ho.socket_carson;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.TextView;
+import android.widget.Toast;
+import android.widget.ToggleButton;
 
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
@@ -25,6 +32,7 @@ import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 import butterknife.Unbinder;
+import scut.carson_ho.socket_carson.service.NioTcpService;
 import scut.carson_ho.socket_carson.service.SocketService;
 import scut.carson_ho.socket_carson.service.TcpService;
 import scut.carson_ho.socket_carson.service.UdpService;
@@ -43,12 +51,33 @@ public class ClientFragment extends Fragment {
     EditText edit;
     @BindView(R.id.send)
     Button send;
-    @BindView(R.id.receive_message)
-    TextView receiveMessage;
+    @BindView(R.id.console_list)
+    RecyclerView consoleList;
+    @BindView(R.id.console_pause)
+    ToggleButton consolePause;
+    @BindView(R.id.console_filter)
+    EditText consoleFilter;
     Unbinder unbinder;
 
     private Handler mMainHandler;
     private SocketService mSocketService;
+    private MessageConsole mConsole;
+    private SocketHostService.Session mSession;
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mSession = ((SocketHostService.LocalBinder) binder).getService()
+                    .getSession(SocketHostService.SESSION_CLIENT);
+            mSocketService = mSession.getTransport();
+            mSession.attach(mConsole, new HandlerServiceListener(mMainHandler));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mSession = null;
+            mSocketService = null;
+        }
+    };
 
 
     @SuppressLint("HandlerLeak")
@@ -61,24 +90,39 @@ public class ClientFragment extends Fragment {
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
-                    case 0:
-                        receiveMessage.setText((String) msg.obj);
+                    case Constants.MESSAGE_TOAST:
+                        if (getActivity() != null) {
+                            Toast.makeText(getActivity(), msg.getData().getString(Constants.TOAST),
+                                    Toast.LENGTH_SHORT).show();
+                        }
                         break;
                 }
             }
         };
-        mSocketService = new TcpService(getContext());
-        mSocketService.setReceiveMessageListener(message -> {
-            Log.d(TAG, "setReceiveMessageListener: " + message);
-            getActivity().runOnUiThread(() -> receiveMessage.setText(message));
-            //receiveMessage::setText
-        });
+        mConsole = new MessageConsole(consoleList, consolePause, consoleFilter);
+        // The connection lives in the service, this view only attaches to it
+        getActivity().getApplicationContext().bindService(
+                new Intent(getActivity(), SocketHostService.class), mConnection, Context.BIND_AUTO_CREATE);
         return rootView;
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        mConsole.detach();
+        if (mSession != null) {
+            mSession.detach();
+            mSession = null;
+            mSocketService = null;
+        }
+        Context context = getActivity().getApplicationContext();
+        if (getActivity().isChangingConfigurations()) {
+            // Unbind once the new view has bound, so an idle service and
+            // its history survive the rotation too
+            mMainHandler.post(() -> context.unbindService(mConnection));
+        } else {
+            context.unbindService(mConnection);
+        }
         unbinder.unbind();
     }
 
@@ -134,6 +178,9 @@ public class ClientFragment extends Fragment {
                 }
             }
         });*/
+        if (mSocketService == null) {
+            return;
+        }
         mSocketService.connect(ip.getText().toString(), PORT);  //tcp
         //mSocketService.start();  //udp
     }
@@ -158,7 +205,9 @@ public class ClientFragment extends Fragment {
         } catch (Exception e) {
             e.printStackTrace();
         }*/
-        mSocketService.stop();
+        if (mSocketService != null) {
+            mSocketService.stop();
+        }
     }
 
     @OnClick(R.id.send)
@@ -177,10 +226,15 @@ public class ClientFragment extends Fragment {
             }
 
         });*/
+        if (mSession == null) {
+            return;
+        }
+        String text = edit.getText().toString();
         try {
-            mSocketService.write((edit.getText().toString()).getBytes("utf-8"), null);
+            mSocketService.write(text.getBytes("utf-8"), null);
+            mSession.sent(ip.getText().toString(), text);
             //mSocketService.write((edit.getText().toString()).getBytes("utf-8"), ip.getText().toString());  //udp
-            //mSocketService.multiWrite((edit.getText().toString()).getBytes("utf-8"));  //udp broadcast
+            //mSocketService.multiWrite((edit.getText().toString()).getBytes("utf-8"));  //udp multicast
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,150 @@
+package scut.carson_ho.socket_carson;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands items from the network threads to the UI at most once per frame.
+ * {@link #post(Object)} never blocks and never touches the main looper
+ * more than once per frame: the first item after a frame schedules a
+ * {@link Choreographer} callback, and every item until then rides along.
+ * <ul>
+ * <li>{@link Mode#BATCH}: the listener gets every item since the last
+ * frame, up to the capacity; the oldest are dropped beyond that.</li>
+ * <li>{@link Mode#LATEST}: the listener gets only the newest item, for
+ * views that show one value and would overwrite the rest anyway.</li>
+ * </ul>
+ */
+public class FrameDispatcher<T> implements Choreographer.FrameCallback {
+
+    public enum Mode {
+        BATCH,
+        LATEST
+    }
+
+    public interface Listener<T> {
+        /**
+         * Called on the main thread once per frame with at least one item.
+         *
+         * @param items Oldest first, only valid during the call
+         */
+        void onItems(List<T> items);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Mode mMode;
+    private final int mCapacity;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mScheduleFrame = () -> Choreographer.getInstance().postFrameCallback(this);
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    // BATCH mode
+    private final ConcurrentLinkedQueue<T> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final List<T> mBatch = new ArrayList<>();
+    // LATEST mode
+    private final AtomicReference<T> mLatest = new AtomicReference<>();
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private Listener<T> mListener;
+
+    public FrameDispatcher(Mode mode, Listener<T> listener) {
+        this(mode, DEFAULT_CAPACITY, listener);
+    }
+
+    /**
+     * @param capacity Items kept between two frames in {@link Mode#BATCH}
+     */
+    public FrameDispatcher(Mode mode, int capacity, Listener<T> listener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mMode = mode;
+        mCapacity = capacity;
+        mListener = listener;
+    }
+
+    /**
+     * Replace the listener, or pause delivery with null. Items posted
+     * meanwhile wait, within the capacity, for the next listener. Call on
+     * the main thread.
+     */
+    public void setListener(Listener<T> listener) {
+        mListener = listener;
+        if (listener != null) {
+            schedule();
+        }
+    }
+
+    /**
+     * Queue an item for the next frame. Safe to call from any thread.
+     */
+    public void post(T item) {
+        if (mMode == Mode.LATEST) {
+            if (mLatest.getAndSet(item) != null) {
+                mDropped.incrementAndGet();
+            }
+        } else {
+            mQueue.add(item);
+            if (mQueued.incrementAndGet() > mCapacity && mQueue.poll() != null) {
+                mQueued.decrementAndGet();
+                mDropped.incrementAndGet();
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Items that were replaced or pushed out before a frame showed them.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mScheduleFrame);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Clear first, so an item posted while we drain schedules a frame
+        mScheduled.set(false);
+        Listener<T> listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        if (mMode == Mode.LATEST) {
+            T latest = mLatest.getAndSet(null);
+            if (latest != null) {
+                listener.onItems(Collections.singletonList(latest));
+            }
+            return;
+        }
+        T item;
+        while (mBatch.size() < mCapacity && (item = mQueue.poll()) != null) {
+            mQueued.decrementAndGet();
+            mBatch.add(item);
+        }
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onItems(mBatch);
+        } finally {
+            mBatch.clear();
+        }
+    }
+}
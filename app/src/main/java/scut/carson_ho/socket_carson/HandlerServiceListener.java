@@ -0,0 +1,39 @@
+package scut.carson_ho.socket_carson;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import scut.carson_ho.socket_carson.service.SocketService;
+
+/**
+ * Forwards the events of a {@link SocketService} to a Handler as the
+ * {@link Constants} messages, so they are handled on the UI thread.
+ */
+public class HandlerServiceListener implements SocketService.ServiceListener {
+
+    private final Handler mHandler;
+
+    public HandlerServiceListener(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    }
+
+    @Override
+    public void onDeviceConnected(String peer) {
+        mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME, peer).sendToTarget();
+    }
+
+    @Override
+    public void onError(String message) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, message);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+}
@@ -8,6 +8,8 @@ import android.widget.Button;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import scut.carson_ho.socket_carson.service.BufferPool;
+import scut.carson_ho.socket_carson.service.SocketLog;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -23,6 +25,14 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        SocketLog.setSink(new AndroidLogSink());
+        if (BuildConfig.DEBUG) {
+            // Report pooled buffers that are never released
+            BufferPool.sharedDirect().setLeakDetection(true);
+            BufferPool.sharedHeap().setLeakDetection(true);
+        } else {
+            SocketLog.setLevel(SocketLog.INFO);
+        }
         setContentView(R.layout.activity_main);
         ButterKnife.bind(this);
         serverFragment = new ServerFragment();
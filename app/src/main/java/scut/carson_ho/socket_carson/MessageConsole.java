@@ -0,0 +1,109 @@
+package scut.carson_ho.socket_carson;
+
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.widget.CompoundButton;
+import android.widget.EditText;
+
+import java.util.List;
+
+/**
+ * The scrolling log of a fragment: every message sent and received with
+ * its time and peer, bounded to the newest {@link #DEFAULT_CAPACITY}.
+ * Entries may be added from any thread; they reach the list once per
+ * frame through a {@link FrameDispatcher}, so a fast peer costs one
+ * RecyclerView update per frame rather than one per message.
+ * <p>
+ * While paused the list stands still and new messages wait in the
+ * dispatcher, the newest kept up to the capacity. The list follows new
+ * messages only while it is scrolled to the bottom.
+ */
+public class MessageConsole {
+
+    public static final int DEFAULT_CAPACITY = 5000;
+
+    private final RecyclerView mList;
+    private final MessageConsoleAdapter mAdapter;
+    private final FrameDispatcher<MessageLog.Entry> mDispatcher;
+    private final FrameDispatcher.Listener<MessageLog.Entry> mDispatchListener = this::onEntries;
+    private boolean mPaused;
+
+    public MessageConsole(RecyclerView list, CompoundButton pause, EditText filter) {
+        this(list, pause, filter, DEFAULT_CAPACITY);
+    }
+
+    public MessageConsole(RecyclerView list, CompoundButton pause, EditText filter, int capacity) {
+        mList = list;
+        mAdapter = new MessageConsoleAdapter(capacity);
+        mDispatcher = new FrameDispatcher<>(FrameDispatcher.Mode.BATCH, capacity, mDispatchListener);
+
+        LinearLayoutManager layoutManager = new LinearLayoutManager(list.getContext());
+        layoutManager.setStackFromEnd(true);
+        list.setLayoutManager(layoutManager);
+        list.setAdapter(mAdapter);
+        // Its size comes from the layout, and rows arrive too fast to animate
+        list.setHasFixedSize(true);
+        list.setItemAnimator(null);
+
+        pause.setOnCheckedChangeListener((button, checked) -> setPaused(checked));
+        filter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mAdapter.setFilter(s.toString());
+                scrollToEnd();
+            }
+        });
+    }
+
+    /**
+     * Show a message on the next frame. Safe to call from any thread.
+     */
+    public void add(MessageLog.Entry entry) {
+        mDispatcher.post(entry);
+    }
+
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+        mDispatcher.setListener(paused ? null : mDispatchListener);
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    public void clear() {
+        mAdapter.clear();
+    }
+
+    /**
+     * Stop updating the views, e.g. in onDestroyView().
+     */
+    public void detach() {
+        mDispatcher.setListener(null);
+    }
+
+    private void onEntries(List<MessageLog.Entry> entries) {
+        boolean atEnd = !mList.canScrollVertically(1);
+        mAdapter.append(entries);
+        if (atEnd) {
+            scrollToEnd();
+        }
+    }
+
+    private void scrollToEnd() {
+        int count = mAdapter.getItemCount();
+        if (count > 0) {
+            mList.scrollToPosition(count - 1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package scut.carson_ho.socket_carson;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shows the entries of a {@link MessageLog} that match the filter, oldest
+ * first. The rows are a second ring of sequence numbers into the log, so
+ * appending a batch only reports the rows that left at the top and the
+ * rows that arrived at the bottom, and the RecyclerView rebinds nothing
+ * else. Call everything on the main thread.
+ */
+public class MessageConsoleAdapter extends RecyclerView.Adapter<MessageConsoleAdapter.ViewHolder> {
+
+    private final MessageLog mLog;
+    // Sequence numbers of the visible entries, a subset of the log in order
+    private final long[] mVisible;
+    private int mVisibleHead;
+    private int mVisibleCount;
+    private String mFilter = "";
+
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+    private final Date mDate = new Date();
+    private final StringBuilder mLine = new StringBuilder();
+
+    public MessageConsoleAdapter(int capacity) {
+        mLog = new MessageLog(capacity);
+        mVisible = new long[capacity];
+        setHasStableIds(true);
+    }
+
+    /**
+     * Add entries to the log and show those that match the filter.
+     */
+    public void append(List<MessageLog.Entry> entries) {
+        int before = mVisibleCount;
+        int removed = 0;
+        int inserted = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            MessageLog.Entry entry = entries.get(i);
+            long evicted = mLog.add(entry);
+            if (evicted >= 0 && mVisibleCount > 0 && mVisible[mVisibleHead] == evicted) {
+                mVisibleHead = (mVisibleHead + 1) % mVisible.length;
+                mVisibleCount--;
+                removed++;
+            }
+            if (entry.contains(mFilter)) {
+                mVisible[(mVisibleHead + mVisibleCount) % mVisible.length] = mLog.getNextSeq() - 1;
+                mVisibleCount++;
+                inserted++;
+            }
+        }
+        if (removed > before) {
+            // The batch pushed out some of its own entries as well
+            notifyDataSetChanged();
+            return;
+        }
+        if (removed > 0) {
+            notifyItemRangeRemoved(0, removed);
+        }
+        if (inserted > 0) {
+            notifyItemRangeInserted(before - removed, inserted);
+        }
+    }
+
+    /**
+     * Show only the entries whose text or peer contains the query,
+     * ignoring case. Empty shows everything.
+     */
+    public void setFilter(String query) {
+        if (query.equals(mFilter)) {
+            return;
+        }
+        mFilter = query;
+        mVisibleHead = 0;
+        mVisibleCount = 0;
+        for (long seq = mLog.getFirstSeq(); seq < mLog.getNextSeq(); seq++) {
+            if (mLog.get(seq).contains(query)) {
+                mVisible[mVisibleCount++] = seq;
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    public void clear() {
+        mLog.clear();
+        mVisibleHead = 0;
+        mVisibleCount = 0;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mVisibleCount;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return seqAt(position);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.message_console_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        MessageLog.Entry entry = mLog.get(seqAt(position));
+        mDate.setTime(entry.getTimeMillis());
+        mLine.setLength(0);
+        mLine.append(mTimeFormat.format(mDate))
+                .append(entry.isSent() ? " -> " : " <- ")
+                .append(entry.getPeer() != null ? entry.getPeer() : "*")
+                .append("  ")
+                .append(entry.getText());
+        holder.mmText.setText(mLine);
+    }
+
+    private long seqAt(int position) {
+        return mVisible[(mVisibleHead + position) % mVisible.length];
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView mmText;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mmText = (TextView) itemView;
+        }
+    }
+}
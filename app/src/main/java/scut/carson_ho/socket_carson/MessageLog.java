@@ -0,0 +1,128 @@
+package scut.carson_ho.socket_carson;
+
+/**
+ * The newest messages sent and received, in a ring of fixed size. Every
+ * entry gets a sequence number that grows by one per message; once the
+ * ring is full each new entry replaces the oldest, so memory stays the
+ * same however long the connection runs.
+ * <p>
+ * Not thread safe, the console only touches it on the main thread.
+ */
+public class MessageLog {
+
+    public static final class Entry {
+
+        private final long mTimeMillis;
+        private final String mPeer;
+        private final boolean mSent;
+        private final String mText;
+
+        /**
+         * @param peer The remote address, or null if not known
+         * @param sent True for a message this side sent
+         */
+        public Entry(long timeMillis, String peer, boolean sent, String text) {
+            mTimeMillis = timeMillis;
+            mPeer = peer;
+            mSent = sent;
+            mText = text;
+        }
+
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        public String getPeer() {
+            return mPeer;
+        }
+
+        public boolean isSent() {
+            return mSent;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        /**
+         * Whether the text or the peer contains the query, ignoring case.
+         * An empty query matches everything.
+         */
+        public boolean contains(String query) {
+            return query.isEmpty() || containsIgnoreCase(mText, query)
+                    || (mPeer != null && containsIgnoreCase(mPeer, query));
+        }
+
+        // No lower-case copies, this runs for every message while filtering
+        private static boolean containsIgnoreCase(String s, String query) {
+            for (int i = 0, last = s.length() - query.length(); i <= last; i++) {
+                if (s.regionMatches(true, i, query, 0, query.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Entry[] mEntries;
+    // Sequence number the next entry gets
+    private long mNextSeq;
+    // Sequence number of the first entry since the last clear()
+    private long mStartSeq;
+
+    public MessageLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mEntries = new Entry[capacity];
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    public int size() {
+        return (int) Math.min(mNextSeq - mStartSeq, mEntries.length);
+    }
+
+    /**
+     * Sequence number of the oldest entry still kept.
+     */
+    public long getFirstSeq() {
+        return mNextSeq - size();
+    }
+
+    public long getNextSeq() {
+        return mNextSeq;
+    }
+
+    /**
+     * Append an entry, replacing the oldest one if the log is full.
+     *
+     * @return The sequence number of the replaced entry, or -1
+     */
+    public long add(Entry entry) {
+        long evicted = mNextSeq - mStartSeq >= mEntries.length ? mNextSeq - mEntries.length : -1;
+        mEntries[(int) (mNextSeq % mEntries.length)] = entry;
+        mNextSeq++;
+        return evicted;
+    }
+
+    public Entry get(long seq) {
+        if (seq < getFirstSeq() || seq >= mNextSeq) {
+            throw new IndexOutOfBoundsException("seq " + seq + " not in ["
+                    + getFirstSeq() + ", " + mNextSeq + ")");
+        }
+        return mEntries[(int) (seq % mEntries.length)];
+    }
+
+    /**
+     * Drop every entry. Sequence numbers keep growing.
+     */
+    public void clear() {
+        for (long seq = getFirstSeq(); seq < mNextSeq; seq++) {
+            mEntries[(int) (seq % mEntries.length)] = null;
+        }
+        mStartSeq = mNextSeq;
+    }
+}
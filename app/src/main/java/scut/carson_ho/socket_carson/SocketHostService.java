@@ -0,0 +1,289 @@
+package scut.carson_ho.socket_carson;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+
+import java.io.IOException;
+
+import scut.carson_ho.socket_carson.service.MulticastConfig;
+import scut.carson_ho.socket_carson.service.NioTcpService;
+import scut.carson_ho.socket_carson.service.SocketLog;
+import scut.carson_ho.socket_carson.service.SocketService;
+import scut.carson_ho.socket_carson.service.StringMessageAdapter;
+import scut.carson_ho.socket_carson.service.UdpService;
+
+/**
+ * Owns the transports, so connections outlive the fragments that show
+ * them. Fragments bind to it, get their {@link Session} and attach their
+ * views; when a rotation recreates them they attach again and catch up
+ * from the session's history without reconnecting.
+ * <p>
+ * While any session is connected or listening the service is started and
+ * in the foreground with a notification, so it keeps running with no UI
+ * bound. When the last one stops it leaves the foreground and stops
+ * itself, and goes away once nothing is bound.
+ */
+public class SocketHostService extends Service {
+
+    private static final String TAG = "SocketHostService";
+
+    public static final int SESSION_CLIENT = 0;
+    public static final int SESSION_SERVER = 1;
+
+    /** Messages each session keeps for views that attach later. */
+    public static final int HISTORY_CAPACITY = MessageConsole.DEFAULT_CAPACITY;
+
+    private static final String NOTIFICATION_CHANNEL = "connections";
+    private static final int NOTIFICATION_ID = 1;
+
+    public class LocalBinder extends Binder {
+        public SocketHostService getService() {
+            return SocketHostService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mUpdateForeground = this::updateForeground;
+    private final Session[] mSessions = new Session[2];
+    private boolean mForeground;
+    // Wi-Fi drops multicast frames unless an app holds this lock
+    private WifiManager.MulticastLock mMulticastLock;
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // A restarted process has no connections to bring back
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mMainHandler.removeCallbacks(mUpdateForeground);
+        for (Session session : mSessions) {
+            if (session != null) {
+                session.mmTransport.stop();
+            }
+        }
+        if (mMulticastLock != null && mMulticastLock.isHeld()) {
+            mMulticastLock.release();
+        }
+    }
+
+    /**
+     * Return the session, creating its transport on first use. Call on the
+     * main thread.
+     *
+     * @param id {@link #SESSION_CLIENT} or {@link #SESSION_SERVER}
+     */
+    public Session getSession(int id) {
+        Session session = mSessions[id];
+        if (session == null) {
+            session = new Session(createTransport(id));
+            mSessions[id] = session;
+        }
+        return session;
+    }
+
+    private SocketService createTransport(int id) {
+        if (id == SESSION_CLIENT) {
+            return new NioTcpService();
+        }
+        UdpService udp = new UdpService();
+        if (MulticastConfig.isSupported()) {
+            // Receive what clients send with multiWrite(), kept over restarts
+            try {
+                udp.joinGroup(MulticastConfig.DEFAULT_GROUP);
+            } catch (IOException e) {
+                SocketLog.e(TAG, "joinGroup() failed", e);
+            }
+        }
+        return udp;
+    }
+
+    private void updateForeground() {
+        boolean active = false;
+        for (Session session : mSessions) {
+            active |= session != null && session.mmTransport.getState() != SocketService.STATE_NONE;
+        }
+        updateMulticastLock();
+        if (active && !mForeground) {
+            // Started, so unbinding the last fragment does not destroy us
+            startService(new Intent(this, SocketHostService.class));
+            startForeground(NOTIFICATION_ID, buildNotification());
+            mForeground = true;
+        } else if (active) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.notify(NOTIFICATION_ID, buildNotification());
+        } else if (mForeground) {
+            stopForeground(true);
+            stopSelf();
+            mForeground = false;
+        }
+    }
+
+    private void updateMulticastLock() {
+        Session server = mSessions[SESSION_SERVER];
+        boolean listening = server != null && MulticastConfig.isSupported()
+                && server.mmTransport.getState() != SocketService.STATE_NONE;
+        if (listening && mMulticastLock == null) {
+            WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+            mMulticastLock = wifi.createMulticastLock(TAG);
+            mMulticastLock.setReferenceCounted(false);
+        }
+        if (listening) {
+            mMulticastLock.acquire();
+        } else if (mMulticastLock != null && mMulticastLock.isHeld()) {
+            mMulticastLock.release();
+        }
+    }
+
+    private Notification buildNotification() {
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && manager.getNotificationChannel(NOTIFICATION_CHANNEL) == null) {
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL,
+                    getString(R.string.notification_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+        StringBuilder text = new StringBuilder();
+        appendState(text, "client", mSessions[SESSION_CLIENT]);
+        appendState(text, "server", mSessions[SESSION_SERVER]);
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(open)
+                .setOngoing(true)
+                .build();
+    }
+
+    private static void appendState(StringBuilder sb, String name, Session session) {
+        if (session == null) {
+            return;
+        }
+        String state;
+        switch (session.mmTransport.getState()) {
+            case SocketService.STATE_LISTEN:
+                state = "listening";
+                break;
+            case SocketService.STATE_CONNECTING:
+                state = "connecting";
+                break;
+            case SocketService.STATE_CONNECTED:
+                state = "connected";
+                break;
+            default:
+                return;
+        }
+        if (sb.length() > 0) {
+            sb.append(", ");
+        }
+        sb.append(name).append(' ').append(state);
+    }
+
+    /**
+     * One transport and the messages it sent and received. The history is
+     * recorded whether or not a view is attached, and handed to each view
+     * that attaches before anything newer, so it sees every message once.
+     */
+    public class Session implements SocketService.ServiceListener {
+
+        private final SocketService mmTransport;
+        // Guarded by this, like the attached console
+        private final MessageLog mmHistory = new MessageLog(HISTORY_CAPACITY);
+        private MessageConsole mmConsole;
+        private volatile SocketService.ServiceListener mmListener;
+
+        Session(SocketService transport) {
+            mmTransport = transport;
+            transport.setServiceListener(this);
+            transport.setBinaryMessageListener(new StringMessageAdapter((peer, message) ->
+                    record(new MessageLog.Entry(System.currentTimeMillis(), peer, false, message))));
+        }
+
+        public SocketService getTransport() {
+            return mmTransport;
+        }
+
+        /**
+         * Show the history in the console, then every new message, and
+         * forward connection events to the listener. Replaces the view
+         * attached before.
+         */
+        public synchronized void attach(MessageConsole console, SocketService.ServiceListener listener) {
+            for (long seq = mmHistory.getFirstSeq(); seq < mmHistory.getNextSeq(); seq++) {
+                console.add(mmHistory.get(seq));
+            }
+            mmConsole = console;
+            mmListener = listener;
+        }
+
+        /**
+         * Stop updating the view, e.g. in onDestroyView(). The connection
+         * and the history are kept.
+         */
+        public synchronized void detach() {
+            mmConsole = null;
+            mmListener = null;
+        }
+
+        /**
+         * Record a message this side wrote, null peer for every peer.
+         */
+        public void sent(String peer, String text) {
+            record(new MessageLog.Entry(System.currentTimeMillis(), peer, true, text));
+        }
+
+        private synchronized void record(MessageLog.Entry entry) {
+            mmHistory.add(entry);
+            if (mmConsole != null) {
+                // Never blocks, the console takes it on the next frame
+                mmConsole.add(entry);
+            }
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+            mMainHandler.post(mUpdateForeground);
+            SocketService.ServiceListener listener = mmListener;
+            if (listener != null) {
+                listener.onStateChanged(state);
+            }
+        }
+
+        @Override
+        public void onDeviceConnected(String peer) {
+            SocketService.ServiceListener listener = mmListener;
+            if (listener != null) {
+                listener.onDeviceConnected(peer);
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            SocketService.ServiceListener listener = mmListener;
+            if (listener != null) {
+                listener.onError(message);
+            }
+        }
+    }
+}
@@ -1,498 +0,0 @@
-/*
- * Copyright (C) 2014 The Android Open Source Project
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package scut.carson_ho.socket_carson.service;
-
-import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-import android.util.Log;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import scut.carson_ho.socket_carson.Constants;
-
-/**
- * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
- */
-public class TcpService implements SocketService {
-    // Debugging
-    private static final String TAG = "TcpService";
-
-    // indicate the current connection state
-    private final int STATE_NONE = 0;       // we're doing nothing
-    private final int STATE_LISTEN = 1;     // now listening for incoming connections
-    private final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    private final int STATE_CONNECTED = 3;  // now connected to a remote device
-
-    // Member fields
-    private final Handler mHandler;
-    private AcceptThread mAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-
-    private int mState;
-    private int mNewState;
-    private ExecutorService mThreadPool;
-    private ReceiveMessageListener mReceiveMessageListener;
-
-    /**
-     * Constructor. Prepares a new BluetoothChat session.
-     *
-     * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
-     */
-    public TcpService(Context context, Handler handler) {
-        mState = STATE_NONE;
-        mNewState = mState;
-        mHandler = handler;
-        mThreadPool = Executors.newCachedThreadPool();
-    }
-
-    /**
-     * Constructor. Prepares a new BluetoothChat session.
-     *
-     * @param context The UI Activity Context
-     */
-    public TcpService(Context context) {
-        mState = STATE_NONE;
-        mNewState = mState;
-        mHandler = new Handler();
-        mThreadPool = Executors.newCachedThreadPool();
-    }
-
-    @Override
-    public void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
-        mReceiveMessageListener = receiveMessageListener;
-    }
-
-    /**
-     * Update UI title according to the current state of the chat connection
-     */
-    private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
-    }
-
-    /**
-     * Return the current connection state.
-     */
-    @Override
-    public synchronized int getState() {
-        return mState;
-    }
-
-    /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
-     */
-    @Override
-    public synchronized void start() {
-        Log.d(TAG, "start");
-
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mAcceptThread == null) {
-            mAcceptThread = new AcceptThread();
-            mAcceptThread.start();
-        }
-        // Update UI title
-        updateUserInterfaceTitle();
-    }
-
-    @Override
-    public synchronized void connect(String ip, int port) {
-        Log.d(TAG, "connect to: " + ip + ":" + port);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(ip, port);
-        mConnectThread.start();
-        // Update UI title
-        updateUserInterfaceTitle();
-    }
-
-    private synchronized void connected(Socket socket) {
-        Log.d(TAG, "connected");
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Cancel the accept thread because we only want to connect to one device
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
-        }
-
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
-
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        /*Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);*/
-        mHandler.sendMessage(msg);
-        // Update UI title
-        updateUserInterfaceTitle();
-    }
-
-    /**
-     * Stop all threads
-     */
-    @Override
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
-        }
-
-        mState = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
-    }
-
-    /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
-     */
-    @Override
-    public void write(byte[] out, String ip) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
-    }
-
-    @Override
-    public void multiWrite(byte[] out) {
-
-    }
-
-    /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
-     */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        mState = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
-
-        // Start the service over to restart listening mode
-        TcpService.this.start();
-    }
-
-    /**
-     * Indicate that the connection was lost and notify the UI Activity.
-     */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        mState = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
-
-        // Start the service over to restart listening mode
-        TcpService.this.start();
-    }
-
-    /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
-     */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private ServerSocket mmServerSocket;
-        private Socket mmSocket;
-
-        public AcceptThread() {
-
-        }
-
-        @Override
-        public void run() {
-            Log.d(TAG, "BEGIN mAcceptThread" + this);
-            setName("AcceptThread");
-
-            Log.d(TAG, "server client start.");
-
-            try {
-                mmServerSocket = new ServerSocket(PORT);
-            } catch (IOException e) {
-                Log.e(TAG, "AcceptThread failed", e);
-                e.printStackTrace();
-            }
-            mState = STATE_LISTEN;
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
-                try {
-                    mmSocket = mmServerSocket.accept();
-                    Log.d(TAG, "server client run.");
-                    String remoteIP = mmSocket.getInetAddress().getHostAddress();
-                    int remotePort = mmSocket.getLocalPort();
-                    Log.d(TAG, "A client connected. IP:" + remoteIP + ", Port: " + remotePort);
-                    Log.d(TAG, "\"server: receiving.............\"");
-                } catch (IOException e) {
-                    Log.e(TAG, "accept() failed", e);
-                    break;
-                }
-                // If a connection was accepted
-                if (mmSocket != null && mmSocket.isConnected()) {
-                    synchronized (TcpService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(mmSocket);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    mmSocket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
-                    }
-                }
-            }
-            Log.i(TAG, "END AcceptThread");
-        }
-
-        public void cancel() {
-            Log.d(TAG, "AcceptThread cancel: " + Thread.currentThread());
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "AcceptThread close() of server failed", e);
-            }
-        }
-    }
-
-    /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
-     */
-    private class ConnectThread extends Thread {
-        private Socket mmSocket;
-        private String ip;
-        private int port;
-
-        public ConnectThread(String ip, int port) {
-            this.ip = ip;
-            this.port = port;
-        }
-
-        @Override
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("SendThread");
-
-            try {
-                mmSocket = new Socket(ip, port);
-            } catch (IOException e) {
-                Log.e(TAG, "SendThread create() failed", e);
-                try {
-                    mmSocket.close();
-                } catch (Exception e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                connectionFailed();
-                return;
-            }
-            mState = STATE_CONNECTING;
-
-            // Reset the SendThread because we're done
-            synchronized (TcpService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket);
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (Exception e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
-    }
-
-    /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
-     */
-    private class ConnectedThread extends Thread {
-        private final Socket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(Socket socket) {
-            Log.d(TAG, "create ConnectedThread: " + Thread.currentThread());
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
-        }
-
-        @Override
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread: " + Thread.currentThread());
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                try {
-                    // Read from the InputStream
-                    byte[] buffer = new byte[mmInStream.available()];
-                    int bytes = mmInStream.read(buffer);
-                    if (bytes > 1) {
-                        Log.d(TAG, "Connected thread received: " + new String(buffer, 0, bytes));
-                        mReceiveMessageListener.onReceived(new String(buffer, 0, bytes));
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            mThreadPool.execute(() -> {
-                Log.d(TAG, "write: " + Thread.currentThread());
-                try {
-                    mmOutStream.write(buffer);
-                    Log.d(TAG, "bluetooth write: " + new String(buffer));
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception during write", e);
-                }
-            });
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
-    }
-}
@@ -0,0 +1,38 @@
+package scut.carson_ho.socket_carson.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scut.carson_ho.socket_carson.service.SocketService;
+
+/**
+ * Helpers to wait for the engines under test.
+ */
+final class Loopback {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private Loopback() {
+    }
+
+    static void awaitState(SocketService service, int state) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (service.getState() != state) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException(service + " never reached state " + state
+                        + ", is " + service.getState());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    static void awaitCount(AtomicLong counter, long target) {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (counter.get() < target) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("only " + counter.get() + " of " + target + " messages arrived");
+            }
+            Thread.yield();
+        }
+    }
+}
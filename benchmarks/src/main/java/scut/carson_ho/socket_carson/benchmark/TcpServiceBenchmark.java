@@ -0,0 +1,121 @@
+package scut.carson_ho.socket_carson.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scut.carson_ho.socket_carson.service.NioTcpService;
+import scut.carson_ho.socket_carson.service.SocketService;
+import scut.carson_ho.socket_carson.service.TcpService;
+import scut.carson_ho.socket_carson.service.ThreadMode;
+
+/**
+ * A server and a client engine connected over loopback. The server echoes
+ * every message back to its sender.
+ * <ul>
+ * <li>{@link #roundTrip}: one message out and its echo back; the sample
+ * time mode reports p50/p99/p999.</li>
+ * <li>{@link #stream}: one-way messages per second into the server.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TcpServiceBenchmark {
+
+    private static final int STREAM_BATCH = 100;
+
+    @Param({"TcpService", "VirtualTcpService", "NioTcpService"})
+    public String engine;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int payloadSize;
+
+    private SocketService mServer;
+    private SocketService mClient;
+    private byte[] mPayload;
+    private final Semaphore mEchoes = new Semaphore(0);
+    private final AtomicLong mServerReceived = new AtomicLong();
+    private volatile boolean mEcho;
+
+    private SocketService newEngine() {
+        switch (engine) {
+            case "TcpService":
+                return new TcpService(true);
+            case "VirtualTcpService":
+                // Same as TcpService below Java 21
+                return new TcpService(true, ThreadMode.VIRTUAL);
+            case "NioTcpService":
+                return new NioTcpService();
+            default:
+                throw new IllegalArgumentException(engine);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mPayload = new byte[payloadSize];
+        mServer = newEngine();
+        mServer.setBinaryMessageListener((peer, message) -> {
+            mServerReceived.incrementAndGet();
+            if (mEcho) {
+                byte[] copy = new byte[message.remaining()];
+                message.get(copy);
+                mServer.write(copy, peer);
+            }
+        });
+        mClient = newEngine();
+        mClient.setBinaryMessageListener((peer, message) -> mEchoes.release());
+        mServer.start();
+        Loopback.awaitState(mServer, SocketService.STATE_LISTEN);
+        mClient.connect("127.0.0.1", SocketService.PORT);
+        Loopback.awaitState(mClient, SocketService.STATE_CONNECTED);
+        Loopback.awaitState(mServer, SocketService.STATE_CONNECTED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mClient.stop();
+        mServer.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException {
+        mEcho = true;
+        mClient.write(mPayload, null);
+        if (!mEchoes.tryAcquire(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("echo lost");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(STREAM_BATCH)
+    public void stream() {
+        mEcho = false;
+        long target = mServerReceived.get() + STREAM_BATCH;
+        for (int i = 0; i < STREAM_BATCH; i++) {
+            mClient.write(mPayload, null);
+        }
+        Loopback.awaitCount(mServerReceived, target);
+    }
+}
@@ -0,0 +1,148 @@
+package scut.carson_ho.socket_carson.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import scut.carson_ho.socket_carson.service.TlsConfig;
+import scut.carson_ho.socket_carson.service.TlsConnection;
+
+/**
+ * Cost of opening a connection over loopback: TCP connect, handshake and
+ * one byte there and back, which also hands a TLS 1.3 client its session
+ * ticket.
+ * <ul>
+ * <li>plaintext: no TLS, the baseline.</li>
+ * <li>full: a full handshake every time, the client session is
+ * invalidated after each connection.</li>
+ * <li>resumed: the client resumes the session of the previous
+ * connection, as {@link scut.carson_ho.socket_carson.service.TcpService}
+ * does when it reconnects.</li>
+ * </ul>
+ * Both sides use the self-signed EC P-256 certificate in
+ * resources/tls/test.p12, password "changeit", made with
+ * <pre>
+ * keytool -J-Dkeystore.pkcs12.legacy -genkeypair -alias test -keyalg EC -groupname secp256r1 \
+ *     -sigalg SHA256withECDSA -dname CN=localhost -ext SAN=ip:127.0.0.1,dns:localhost \
+ *     -validity 36500 -storetype PKCS12 -keystore test.p12 -storepass changeit
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TlsHandshakeBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    @Param({"TLSv1.3", "TLSv1.2"})
+    public String protocol;
+
+    @Param({"plaintext", "full", "resumed"})
+    public String handshake;
+
+    private TlsConfig mConfig;
+    private ServerSocket mServerSocket;
+    private Thread mServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try (InputStream in = TlsHandshakeBenchmark.class.getResourceAsStream("/tls/test.p12")) {
+            mConfig = TlsConfig.fromPkcs12(in, "changeit".toCharArray()).setProtocols(protocol);
+        }
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServer = new Thread(this::serve, "TlsHandshakeBenchmark-server");
+        mServer.start();
+        if (handshake.equals("resumed")) {
+            // Leave a session to resume
+            connectTls(false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        mServer.join();
+    }
+
+    /**
+     * Echo one byte per connection until the server socket is closed.
+     */
+    private void serve() {
+        boolean tls = !handshake.equals("plaintext");
+        while (!mServerSocket.isClosed()) {
+            try (Socket socket = mServerSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                TlsConnection connection = null;
+                if (tls) {
+                    connection = new TlsConnection(socket, mConfig.createServerEngine(), TIMEOUT_MILLIS);
+                    connection.handshake();
+                    in = connection.getInputStream();
+                    out = connection.getOutputStream();
+                }
+                out.write(in.read());
+                out.flush();
+                // Until the client closes
+                in.read();
+            } catch (IOException e) {
+                // Closed by tearDown(), or a failed connection
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int connect() throws IOException {
+        if (handshake.equals("plaintext")) {
+            try (Socket socket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort())) {
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write(42);
+                return socket.getInputStream().read();
+            }
+        }
+        return connectTls(handshake.equals("resumed"));
+    }
+
+    private int connectTls(boolean expectResumed) throws IOException {
+        Socket socket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        TlsConnection connection = new TlsConnection(socket,
+                mConfig.createClientEngine("127.0.0.1", mServerSocket.getLocalPort()), TIMEOUT_MILLIS);
+        try {
+            connection.handshake();
+            connection.getOutputStream().write(42);
+            connection.getOutputStream().flush();
+            int echo = connection.getInputStream().read();
+            if (connection.isResumed() != expectResumed) {
+                throw new IllegalStateException("expected resumed " + expectResumed);
+            }
+            return echo;
+        } finally {
+            if (handshake.equals("full")) {
+                connection.getSession().invalidate();
+            }
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package scut.carson_ho.socket_carson.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scut.carson_ho.socket_carson.service.SocketService;
+import scut.carson_ho.socket_carson.service.UdpReceiveConfig;
+import scut.carson_ho.socket_carson.service.UdpService;
+
+/**
+ * One UdpService sending datagrams to its own receiver over loopback, so a
+ * round trip is send queue, kernel and receiver thread. A datagram that is
+ * dropped by the kernel is counted and sent again rather than failing the
+ * run; the count is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UdpServiceBenchmark {
+
+    @Param({"16", "256", "4096", "65000"})
+    public int payloadSize;
+
+    private UdpService mService;
+    private byte[] mPayload;
+    private final Semaphore mReceived = new Semaphore(0);
+    private final AtomicLong mLost = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mPayload = new byte[payloadSize];
+        mService = new UdpService();
+        mService.setReceiveConfig(new UdpReceiveConfig()
+                .setDatagramSize(UdpReceiveConfig.MAX_DATAGRAM_SIZE)
+                .setReceiveBufferSize(4 * 1024 * 1024)
+                .setSendBufferSize(4 * 1024 * 1024));
+        mService.setBinaryMessageListener((peer, message) -> mReceived.release());
+        mService.start();
+        Loopback.awaitState(mService, SocketService.STATE_LISTEN);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mService.stop();
+        if (mLost.get() > 0) {
+            System.out.println("lost datagrams: " + mLost.get());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException {
+        do {
+            mService.write(mPayload, "127.0.0.1");
+            if (mReceived.tryAcquire(1, TimeUnit.SECONDS)) {
+                return;
+            }
+            mLost.incrementAndGet();
+        } while (true);
+    }
+}
@@ -0,0 +1,230 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the buffers of the send and receive paths so that a busy
+ * session allocates next to nothing per message. Capacities are rounded up
+ * to a power of two between {@link #MIN_BUFFER_SIZE} and
+ * {@link #MAX_BUFFER_SIZE}; each size class has a shared free list and a
+ * small cache per thread that is used without any locking. Bigger buffers
+ * are allocated every time and not kept. A thread that ends takes its
+ * cache with it, which only costs the next thread a fresh allocation; a
+ * thread that idles between short bursts releases with
+ * {@link PooledBuffer#release(boolean)} so its cache holds nothing.
+ * <p>
+ * Every {@link #acquire(int)} must be followed by exactly one
+ * {@link PooledBuffer#release()}. With {@link #setLeakDetection(boolean)}
+ * on, a buffer that is garbage collected without being released is logged
+ * with the stack of its acquire() and put back into the pool.
+ */
+public final class BufferPool {
+    // Debugging
+    private static final String TAG = "BufferPool";
+
+    public static final int MIN_BUFFER_SIZE = 256;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MIN_SHIFT = 8;
+    private static final int SIZE_CLASSES = 9;
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final int MIN_POOLED = 4;
+    private static final int DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+
+    private static final BufferPool SHARED_DIRECT = new BufferPool(true, DEFAULT_MAX_POOLED_BYTES);
+    private static final BufferPool SHARED_HEAP = new BufferPool(false, DEFAULT_MAX_POOLED_BYTES);
+
+    private final boolean mDirect;
+    private final List<ArrayBlockingQueue<PooledBuffer>> mFreeLists;
+    private final ThreadLocal<ThreadCache> mThreadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    private volatile boolean mLeakDetection;
+    private final ReferenceQueue<PooledBuffer> mLeakQueue = new ReferenceQueue<>();
+    private final Set<Leak> mTracked = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicLong mLeaks = new AtomicLong();
+
+    /**
+     * Pool of direct buffers, for channel I/O.
+     */
+    public static BufferPool sharedDirect() {
+        return SHARED_DIRECT;
+    }
+
+    /**
+     * Pool of heap buffers, for stream I/O that needs a byte array.
+     */
+    public static BufferPool sharedHeap() {
+        return SHARED_HEAP;
+    }
+
+    /**
+     * @param direct         true for direct buffers, false for heap buffers
+     * @param maxPooledBytes Bytes per size class kept on the shared free
+     *                       list, so small buffers are kept in larger
+     *                       numbers than big ones
+     */
+    public BufferPool(boolean direct, int maxPooledBytes) {
+        mDirect = direct;
+        mFreeLists = new ArrayList<>(SIZE_CLASSES);
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            mFreeLists.add(new ArrayBlockingQueue<PooledBuffer>(
+                    Math.max(maxPooledBytes / (MIN_BUFFER_SIZE << i), MIN_POOLED)));
+        }
+    }
+
+    /**
+     * Report buffers that are never released. Costs an allocation and a
+     * stack trace per acquire(), so only turn it on in debug builds.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        mLeakDetection = leakDetection;
+    }
+
+    /**
+     * Borrow a buffer of at least the given capacity, cleared.
+     */
+    public PooledBuffer acquire(int capacity) {
+        PooledBuffer pooled = null;
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= 0) {
+            pooled = mThreadCache.get().pop(sizeClass);
+            if (pooled == null) {
+                pooled = mFreeLists.get(sizeClass).poll();
+            }
+        }
+        if (pooled == null) {
+            int size = sizeClass >= 0 ? MIN_BUFFER_SIZE << sizeClass : capacity;
+            ByteBuffer buffer = mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            pooled = new PooledBuffer(this, buffer, sizeClass);
+            mAllocated.incrementAndGet();
+        }
+        pooled.acquired();
+        if (mLeakDetection) {
+            reclaimLeaks();
+            Leak leak = new Leak(pooled, mLeakQueue);
+            mTracked.add(leak);
+            pooled.mLeak = leak;
+        }
+        return pooled;
+    }
+
+    void release(PooledBuffer pooled, boolean shared) {
+        Leak leak = pooled.mLeak;
+        if (leak != null) {
+            pooled.mLeak = null;
+            mTracked.remove(leak);
+            leak.clear();
+        }
+        recycle(pooled, shared);
+    }
+
+    private void recycle(PooledBuffer pooled, boolean shared) {
+        if (pooled.mSizeClass < 0) {
+            // Oversized, left to the garbage collector
+            return;
+        }
+        pooled.buffer().clear();
+        if (shared || !mThreadCache.get().push(pooled)) {
+            mFreeLists.get(pooled.mSizeClass).offer(pooled);
+        }
+    }
+
+    private void reclaimLeaks() {
+        Leak leak;
+        while ((leak = (Leak) mLeakQueue.poll()) != null) {
+            if (!mTracked.remove(leak)) {
+                continue;
+            }
+            mLeaks.incrementAndGet();
+            SocketLog.e(TAG, "A " + leak.mBuffer.capacity() + " byte buffer was garbage collected"
+                    + " without release()", leak.mAcquiredAt);
+            recycle(new PooledBuffer(this, leak.mBuffer, leak.mSizeClass), false);
+        }
+    }
+
+    /**
+     * @return the size class of the capacity, or -1 if it is too big to pool
+     */
+    static int sizeClass(int capacity) {
+        if (capacity > MAX_BUFFER_SIZE) {
+            return -1;
+        }
+        if (capacity <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Buffers created since the pool started. Stays flat once the pool has
+     * warmed up.
+     */
+    public long getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    /**
+     * Buffers that were found garbage collected without release().
+     */
+    public long getLeakCount() {
+        return mLeaks.get();
+    }
+
+    private static class ThreadCache {
+        private final PooledBuffer[][] mStacks = new PooledBuffer[SIZE_CLASSES][THREAD_CACHE_SIZE];
+        private final int[] mSizes = new int[SIZE_CLASSES];
+
+        PooledBuffer pop(int sizeClass) {
+            int size = mSizes[sizeClass];
+            if (size == 0) {
+                return null;
+            }
+            mSizes[sizeClass] = --size;
+            PooledBuffer pooled = mStacks[sizeClass][size];
+            mStacks[sizeClass][size] = null;
+            return pooled;
+        }
+
+        boolean push(PooledBuffer pooled) {
+            int size = mSizes[pooled.mSizeClass];
+            if (size == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            mStacks[pooled.mSizeClass][size] = pooled;
+            mSizes[pooled.mSizeClass] = size + 1;
+            return true;
+        }
+    }
+
+    /**
+     * Becomes enqueued when a borrowed PooledBuffer is collected. Keeps the
+     * ByteBuffer itself so it can go back into the pool.
+     */
+    static class Leak extends PhantomReference<PooledBuffer> {
+        final ByteBuffer mBuffer;
+        final int mSizeClass;
+        final Throwable mAcquiredAt = new Throwable("acquire()");
+
+        Leak(PooledBuffer pooled, ReferenceQueue<PooledBuffer> queue) {
+            super(pooled, queue);
+            mBuffer = pooled.buffer();
+            mSizeClass = pooled.mSizeClass;
+        }
+    }
+}
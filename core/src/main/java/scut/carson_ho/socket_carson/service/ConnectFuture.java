@@ -0,0 +1,141 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of {@link TcpService#connectAsync(String, int)}: the id of the
+ * new connection, or why there is none. Listeners run on the thread that
+ * completes the future, or right away if it is already done.
+ * <p>
+ * This stands in for CompletableFuture, which Android only has from API 24.
+ */
+public class ConnectFuture implements Future<Integer> {
+
+    public interface Listener {
+        void onComplete(ConnectFuture future);
+    }
+
+    interface Canceller {
+        void cancel(ConnectFuture future);
+    }
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final Canceller mCanceller;
+    // Guarded by this, null once done
+    private List<Listener> mListeners = new ArrayList<>();
+    private volatile int mConnectionId = -1;
+    private volatile Throwable mFailure;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param canceller Stops the connection attempt when the future is
+     *                  cancelled
+     */
+    ConnectFuture(Canceller canceller) {
+        mCanceller = canceller;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    boolean complete(int connectionId) {
+        return finish(connectionId, null, false);
+    }
+
+    boolean fail(Throwable failure) {
+        return finish(-1, failure, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(-1, new CancellationException(), true)) {
+            return false;
+        }
+        mCanceller.cancel(this);
+        return true;
+    }
+
+    /**
+     * Cancel without stopping the attempt, which the service already did.
+     */
+    boolean abort() {
+        return finish(-1, new CancellationException(), true);
+    }
+
+    private boolean finish(int connectionId, Throwable failure, boolean cancelled) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (mListeners == null) {
+                // Only the first outcome counts
+                return false;
+            }
+            mConnectionId = connectionId;
+            mFailure = failure;
+            mCancelled = cancelled;
+            listeners = mListeners;
+            mListeners = null;
+        }
+        mDone.countDown();
+        for (Listener listener : listeners) {
+            listener.onComplete(this);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * Return why the connect failed, or null if it succeeded or is still
+     * running.
+     */
+    public Throwable getFailure() {
+        return isDone() ? mFailure : null;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Integer result() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mConnectionId;
+    }
+}
@@ -0,0 +1,126 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static scut.carson_ho.socket_carson.service.SocketService.STATE_CONNECTED;
+import static scut.carson_ho.socket_carson.service.SocketService.STATE_CONNECTING;
+import static scut.carson_ho.socket_carson.service.SocketService.STATE_LISTEN;
+import static scut.carson_ho.socket_carson.service.SocketService.STATE_NONE;
+
+/**
+ * The connection state of a service. Any thread may read it without a lock.
+ * Every change is a compare-and-set checked against the valid transitions
+ * below, and the listener is called afterwards, outside of any lock.
+ * Callers must not hold a lock of their own while changing the state, so a
+ * slow listener never blocks the I/O threads.
+ * <p>
+ * Listener calls never overlap and never go backwards: if several threads
+ * change the state at once, one of them reports the changes for all, and
+ * changes that were already overtaken may be merged into one call. The
+ * last call always reports the current state.
+ * <pre>
+ *   NONE       -> LISTEN, CONNECTING
+ *   LISTEN     -> NONE, CONNECTING, CONNECTED
+ *   CONNECTING -> NONE, LISTEN, CONNECTED
+ *   CONNECTED  -> NONE, LISTEN, CONNECTING
+ * </pre>
+ */
+final class ConnectionState {
+
+    interface Listener {
+        void onStateChanged(int from, int to);
+    }
+
+    // Bit i of VALID[from] is set if the state may change from 'from' to i
+    private static final int[] VALID = {
+            bits(STATE_LISTEN, STATE_CONNECTING),
+            bits(STATE_NONE, STATE_CONNECTING, STATE_CONNECTED),
+            bits(STATE_NONE, STATE_LISTEN, STATE_CONNECTED),
+            bits(STATE_NONE, STATE_LISTEN, STATE_CONNECTING),
+    };
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_NONE);
+    private final Listener mListener;
+    // Threads that changed the state since the last report
+    private final AtomicInteger mPendingReports = new AtomicInteger();
+    // Only written by the thread that reports
+    private int mReportedState = STATE_NONE;
+
+    ConnectionState(Listener listener) {
+        mListener = listener;
+    }
+
+    private static int bits(int... states) {
+        int bits = 0;
+        for (int state : states) {
+            bits |= 1 << state;
+        }
+        return bits;
+    }
+
+    static boolean isValid(int from, int to) {
+        return (VALID[from] & (1 << to)) != 0;
+    }
+
+    int get() {
+        return mState.get();
+    }
+
+    /**
+     * Change the state only if it is still {@code expect}.
+     *
+     * @return false if the state was something else
+     * @throws IllegalArgumentException if the transition is never valid
+     */
+    boolean compareAndSet(int expect, int update) {
+        if (!isValid(expect, update)) {
+            throw new IllegalArgumentException("Invalid transition " + expect + " -> " + update);
+        }
+        if (!mState.compareAndSet(expect, update)) {
+            return false;
+        }
+        report();
+        return true;
+    }
+
+    /**
+     * Change the state from whatever it is now.
+     *
+     * @return true if the state is {@code update} afterwards, false if the
+     * current state cannot change to it (e.g. a connection that completes
+     * after the service was stopped)
+     */
+    boolean moveTo(int update) {
+        while (true) {
+            int current = mState.get();
+            if (current == update) {
+                return true;
+            }
+            if (!isValid(current, update)) {
+                return false;
+            }
+            if (mState.compareAndSet(current, update)) {
+                report();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Tell the listener about the current state. Only the first thread in
+     * reports; the others just leave a note for it to look again.
+     */
+    private void report() {
+        if (mPendingReports.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            int state = mState.get();
+            if (state != mReportedState) {
+                int from = mReportedState;
+                mReportedState = state;
+                mListener.onStateChanged(from, state);
+            }
+        } while (mPendingReports.decrementAndGet() != 0);
+    }
+}
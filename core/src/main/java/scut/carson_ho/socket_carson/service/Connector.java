@@ -0,0 +1,226 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a TCP connection to a host name the Happy Eyeballs way (RFC 8305).
+ * The addresses of the host are tried in turn, alternating between IPv6
+ * and IPv4, and each attempt that has not succeeded after
+ * {@link #ATTEMPT_DELAY_MILLIS} gets the next one started alongside it.
+ * The first socket to connect wins and all other attempts are closed. A
+ * dead address therefore costs a quarter of a second instead of the
+ * kernel's connect timeout.
+ * <p>
+ * The host name is resolved on a thread of its own, so a slow DNS lookup
+ * counts against the timeout and can be cancelled like the attempts. The
+ * lookup itself can not be aborted; it finishes in the background and its
+ * result is ignored.
+ */
+class Connector {
+    // Debugging
+    private static final String TAG = "Connector";
+
+    // RFC 8305 recommends 250 ms between attempts
+    static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    private final String mHost;
+    private final int mPort;
+    private final int mTimeoutMillis;
+    private final ThreadMode mThreadMode;
+
+    // Guarded by this
+    private List<InetAddress> mAddresses;
+    private IOException mResolveFailure;
+    private final List<Socket> mSockets = new ArrayList<>();
+    private Socket mWinner;
+    private IOException mLastFailure;
+    private int mFailed;
+    private boolean mCancelled;
+    private boolean mReturned;
+
+    /**
+     * @param timeoutMillis Time for the whole connect, DNS lookup included
+     */
+    Connector(String host, int port, int timeoutMillis, ThreadMode threadMode) {
+        mHost = host;
+        mPort = port;
+        mTimeoutMillis = timeoutMillis;
+        mThreadMode = threadMode;
+    }
+
+    /**
+     * Connect, blocking the calling thread until the first attempt succeeds.
+     *
+     * @throws SocketTimeoutException if no attempt succeeded in time
+     * @throws IOException            with the failure of the last attempt if
+     *                                all of them failed, or if cancelled
+     */
+    Socket connect() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMillis);
+        int started = 0;
+        long nextAttempt = 0;
+        synchronized (this) {
+            if (!mCancelled) {
+                mThreadMode.newThread(this::resolve, "Connector-resolve-" + mHost).start();
+            }
+            while (true) {
+                if (mCancelled) {
+                    throw new IOException("Connect to " + mHost + " cancelled");
+                }
+                if (mWinner != null) {
+                    mReturned = true;
+                    return mWinner;
+                }
+                if (mResolveFailure != null) {
+                    throw mResolveFailure;
+                }
+                List<InetAddress> addresses = mAddresses;
+                int count = addresses != null ? addresses.size() : 0;
+                if (addresses != null && mFailed == count) {
+                    throw mLastFailure;
+                }
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    cancel();
+                    throw new SocketTimeoutException("Connect to " + mHost + " timed out after "
+                            + mTimeoutMillis + " ms");
+                }
+                // Start the next attempt if the running ones are slow or all failed
+                if (started < count && (mFailed == started || now - nextAttempt >= 0)) {
+                    startAttempt(addresses.get(started++), TimeUnit.NANOSECONDS.toMillis(deadline - now));
+                    nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS);
+                    continue;
+                }
+                long wait = deadline - now;
+                if (started < count) {
+                    wait = Math.min(wait, nextAttempt - now);
+                }
+                try {
+                    wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                } catch (InterruptedException e) {
+                    cancel();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Connect to " + mHost + " interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Abort all attempts. A connect() in progress throws. A socket that
+     * connect() already returned belongs to the caller and stays open.
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+        for (Socket socket : mSockets) {
+            if (socket != mWinner || !mReturned) {
+                closeQuietly(socket);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Look the host up and hand the addresses to connect(), which waits
+     * for them against its deadline.
+     */
+    private void resolve() {
+        List<InetAddress> addresses = null;
+        IOException failure = null;
+        try {
+            addresses = interleave(InetAddress.getAllByName(mHost));
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            mAddresses = addresses;
+            mResolveFailure = failure;
+            notifyAll();
+        }
+    }
+
+    private void startAttempt(InetAddress address, long timeoutMillis) {
+        if (SocketLog.isLoggable(SocketLog.DEBUG)) {
+            SocketLog.d(TAG, "connect to {}:{}", address.getHostAddress(), mPort);
+        }
+        Socket socket = new Socket();
+        mSockets.add(socket);
+        int timeout = (int) Math.max(1, Math.min(timeoutMillis, Integer.MAX_VALUE));
+        Thread thread = mThreadMode.newThread(() -> attempt(socket, address, timeout),
+                "Connector-" + address.getHostAddress());
+        thread.start();
+    }
+
+    private void attempt(Socket socket, InetAddress address, int timeoutMillis) {
+        IOException failure = null;
+        try {
+            socket.connect(new InetSocketAddress(address, mPort), timeoutMillis);
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            if (failure == null && mWinner == null && !mCancelled) {
+                mWinner = socket;
+                // Abort the slower attempts
+                for (Socket other : mSockets) {
+                    if (other != socket) {
+                        closeQuietly(other);
+                    }
+                }
+            } else {
+                closeQuietly(socket);
+                if (failure != null) {
+                    if (SocketLog.isLoggable(SocketLog.DEBUG)) {
+                        SocketLog.d(TAG, "{} failed: {}", address.getHostAddress(), failure);
+                    }
+                    mLastFailure = failure;
+                    mFailed++;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Order the addresses so that the families alternate, starting with the
+     * family of the first one (RFC 8305 section 4).
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            SocketLog.e(TAG, "close() of socket failed", e);
+        }
+    }
+}
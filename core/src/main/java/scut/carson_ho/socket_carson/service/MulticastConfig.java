@@ -0,0 +1,172 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+
+/**
+ * Multicast settings of a {@link UdpService}: the group that
+ * {@link UdpService#multiWrite(byte[])} sends to, the network interface used
+ * for sending and joining, and the hop limit. The setters return this so a
+ * config can be built in one expression.
+ * <p>
+ * Multicast is built on {@link java.nio.channels.MulticastChannel}, which
+ * Android only offers from API level 24 (7.0); see {@link #isSupported()}.
+ * Receiving multicast over Wi-Fi also needs a
+ * {@code WifiManager.MulticastLock} held by the app.
+ */
+public class MulticastConfig {
+
+    /**
+     * Organization-local scope (RFC 2365), never routed off the site.
+     */
+    public static final String DEFAULT_GROUP = "239.255.81.91";
+
+    private static final boolean SUPPORTED = hasMulticastChannel();
+
+    private String mGroup = DEFAULT_GROUP;
+    private NetworkInterface mInterface;
+    private int mTimeToLive = 1;
+    private boolean mLoopback = true;
+
+    /**
+     * Whether this runtime can join groups and set multicast options.
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * The group multiWrite() sends to, an IPv4 224.0.0.0/4 or IPv6 ff00::/8
+     * literal.
+     *
+     * @throws IllegalArgumentException if it is not a multicast address
+     */
+    public MulticastConfig setGroup(String group) {
+        checkGroup(parse(group));
+        mGroup = group;
+        return this;
+    }
+
+    /**
+     * The interface to send on and to join groups on, null to pick the
+     * first interface that is up and has an address of the group's family.
+     */
+    public MulticastConfig setInterface(NetworkInterface networkInterface) {
+        mInterface = networkInterface;
+        return this;
+    }
+
+    /**
+     * IP_MULTICAST_TTL / hop limit, 0..255. The default 1 keeps datagrams
+     * on the local link.
+     */
+    public MulticastConfig setTimeToLive(int timeToLive) {
+        if (timeToLive < 0 || timeToLive > 255) {
+            throw new IllegalArgumentException("timeToLive must be in 0..255");
+        }
+        mTimeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Whether our own datagrams are delivered to our own joined groups.
+     */
+    public MulticastConfig setLoopback(boolean loopback) {
+        mLoopback = loopback;
+        return this;
+    }
+
+    public String getGroup() {
+        return mGroup;
+    }
+
+    public NetworkInterface getInterface() {
+        return mInterface;
+    }
+
+    public int getTimeToLive() {
+        return mTimeToLive;
+    }
+
+    public boolean isLoopback() {
+        return mLoopback;
+    }
+
+    /**
+     * Return the configured interface, or the best guess for the group.
+     *
+     * @throws SocketException if no interface can carry multicast
+     */
+    NetworkInterface resolveInterface(InetAddress group) throws SocketException {
+        if (mInterface != null) {
+            return mInterface;
+        }
+        NetworkInterface fallback = null;
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!ni.isUp() || !ni.supportsMulticast() || !hasAddressOfFamily(ni, group)) {
+                continue;
+            }
+            if (!ni.isLoopback()) {
+                return ni;
+            }
+            fallback = ni;
+        }
+        if (fallback == null) {
+            throw new SocketException("No multicast capable interface for " + group.getHostAddress());
+        }
+        return fallback;
+    }
+
+    private static boolean hasAddressOfFamily(NetworkInterface ni, InetAddress group) {
+        for (InterfaceAddress address : ni.getInterfaceAddresses()) {
+            if ((address.getAddress() instanceof Inet4Address) == (group instanceof Inet4Address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a numeric address. Never does a DNS lookup.
+     */
+    static InetAddress parse(String address) {
+        // Host names never contain ':', IPv4 literals are dotted quads
+        if (address == null || (address.indexOf(':') < 0 && !address.matches("\\d{1,3}(\\.\\d{1,3}){3}"))) {
+            throw new IllegalArgumentException("Not a numeric address: " + address);
+        }
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Not a numeric address: " + address, e);
+        }
+    }
+
+    static void checkGroup(InetAddress group) {
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group.getHostAddress()
+                    + " is not a multicast group (224.0.0.0/4 or ff00::/8)");
+        }
+    }
+
+    static void checkSupported() {
+        if (!SUPPORTED) {
+            throw new UnsupportedOperationException("Multicast needs java.nio.channels.MulticastChannel"
+                    + " (Android API level 24)");
+        }
+    }
+
+    private static boolean hasMulticastChannel() {
+        try {
+            DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,610 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import scut.carson_ho.socket_carson.service.codec.DeflateCompression;
+import scut.carson_ho.socket_carson.service.codec.FrameCodec;
+import scut.carson_ho.socket_carson.service.codec.FrameDecoder;
+import scut.carson_ho.socket_carson.service.codec.VarintFrameCodec;
+import scut.carson_ho.socket_carson.service.metrics.MetricsSnapshot;
+import scut.carson_ho.socket_carson.service.metrics.ServiceMetrics;
+import scut.carson_ho.socket_carson.service.metrics.TransportMetrics;
+
+/**
+ * Event driven variant of {@link TcpService}. A single selector thread owns
+ * the listening channel and the connected channel, and is only woken up by
+ * the kernel when a connection arrives, data can be read or the socket can
+ * take more bytes. Commands from other threads are queued and the selector
+ * is woken up to run them, so no channel is ever touched off that thread.
+ */
+public class NioTcpService implements SocketService {
+    // Debugging
+    private static final String TAG = "NioTcpService";
+
+    // Frames are packed into pooled direct buffers of at least this size
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    // Member fields
+    private volatile ServiceListener mServiceListener;
+    private volatile SelectorThread mSelectorThread;
+
+    // indicate the current connection state
+    private final ConnectionState mState = new ConnectionState(this::onStateChanged);
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private volatile BinaryMessageListener mBinaryMessageListener;
+    private volatile FrameCodec mFrameCodec = new VarintFrameCodec();
+
+    /**
+     * Constructor. Prepares a new session.
+     */
+    public NioTcpService() {
+    }
+
+    @Override
+    public void setServiceListener(ServiceListener serviceListener) {
+        mServiceListener = serviceListener;
+    }
+
+    @Override
+    public void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
+        setBinaryMessageListener(receiveMessageListener != null
+                ? new StringMessageAdapter(receiveMessageListener) : null);
+    }
+
+    @Override
+    public void setBinaryMessageListener(BinaryMessageListener binaryMessageListener) {
+        mBinaryMessageListener = binaryMessageListener;
+    }
+
+    /**
+     * Set the codec that splits the stream into messages. Both peers must
+     * use the same codec. Takes effect for connections opened afterwards.
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        mFrameCodec = frameCodec;
+    }
+
+    /**
+     * Update UI title according to the current state of the chat connection.
+     * Called without holding the service lock.
+     */
+    private void onStateChanged(int from, int to) {
+        SocketLog.d(TAG, "onStateChanged() {} -> {}", from, to);
+
+        // Give the new state to the listener so the UI Activity can update
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onStateChanged(to);
+        }
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    @Override
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Start listening for an incoming connection on {@link #PORT}.
+     */
+    @Override
+    public synchronized void start() {
+        SocketLog.d(TAG, "start");
+        selectorThread().submit(SelectorThread::listen);
+    }
+
+    @Override
+    public synchronized void connect(String ip, int port) {
+        SocketLog.d(TAG, "connect to: {}:{}", ip, port);
+        selectorThread().submit(t -> t.connect(ip, port));
+    }
+
+    /**
+     * Stop all channels and the selector thread
+     */
+    @Override
+    public void stop() {
+        SocketLog.d(TAG, "stop");
+
+        synchronized (this) {
+            if (mSelectorThread != null) {
+                mSelectorThread.cancel();
+                mSelectorThread = null;
+            }
+        }
+
+        // Update UI title
+        mState.moveTo(STATE_NONE);
+    }
+
+    /**
+     * Queue the bytes for the connected channel. The selector thread writes
+     * them as soon as the socket is writable.
+     *
+     * @param out The bytes to write
+     */
+    @Override
+    public void write(byte[] out, String ip) {
+        if (mState.get() != STATE_CONNECTED) return;
+        SelectorThread r = mSelectorThread;
+        if (r != null) {
+            SocketLog.dumpSent(TAG, r.mmRemoteIp, out);
+            long offerNanos = System.nanoTime();
+            r.submit(t -> t.enqueue(out, offerNanos));
+        }
+    }
+
+    @Override
+    public void multiWrite(byte[] out) {
+        write(out, null);
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        SelectorThread r = mSelectorThread;
+        // Not while a closing connection moves into the totals
+        synchronized (mMetrics) {
+            TransportMetrics connection = r != null ? r.mmMetrics : null;
+            if (connection == null) {
+                return mMetrics.snapshot(TAG, 0, Collections.<MetricsSnapshot>emptyList());
+            }
+            return mMetrics.snapshot(TAG, 0, Collections.singletonList(
+                    connection.snapshot("0", r.mmRemoteIp, r.mmPendingMessages)));
+        }
+    }
+
+    private synchronized SelectorThread selectorThread() {
+        if (mSelectorThread == null) {
+            try {
+                mSelectorThread = new SelectorThread();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector", e);
+            }
+            mSelectorThread.start();
+        }
+        return mSelectorThread;
+    }
+
+    private boolean setState(int state) {
+        return mState.moveTo(state);
+    }
+
+    private void notifyError(String message) {
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onError(message);
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed() {
+        mMetrics.recordConnectFailure();
+        // Send a failure message back to the Activity
+        notifyError("Unable to connect device");
+
+        setState(STATE_NONE);
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the UI Activity.
+     * The selector thread starts listening again afterwards.
+     */
+    private void connectionLost() {
+        // Send a failure message back to the Activity
+        notifyError("Device connection was lost");
+
+        setState(STATE_NONE);
+    }
+
+    private interface Command {
+        void run(SelectorThread thread) throws IOException;
+    }
+
+    /**
+     * The only thread that touches the channels. It blocks in
+     * {@link Selector#select()} until there is I/O or a queued command.
+     */
+    private class SelectorThread extends Thread implements FrameCodec.FrameListener {
+        private final Selector mmSelector;
+        private final Queue<Command> mmCommands = new ConcurrentLinkedQueue<>();
+        // Flipped buffers waiting for the socket, the last one still takes frames
+        private final ArrayDeque<PooledBuffer> mmPendingWrites = new ArrayDeque<>();
+        private ByteBuffer[] mmGather = new ByteBuffer[8];
+        // Per pending frame: its end in the stream of written bytes and
+        // when write() was called, a ring of mmPendingMessages entries
+        private long[] mmPendingEnds = new long[64];
+        private long[] mmPendingOffers = new long[64];
+        private int mmPendingHead;
+        private volatile int mmPendingMessages;
+        private long mmBytesQueued;
+        private long mmBytesWritten;
+        private FrameCodec mmFrameCodec;
+        private FrameDecoder mmDecoder;
+        private long mmReadNanos;
+        private ServerSocketChannel mmServerChannel;
+        private SocketChannel mmChannel;
+        private volatile String mmRemoteIp;
+        // Metrics of the open connection, null while there is none
+        private volatile TransportMetrics mmMetrics;
+        private volatile boolean mmRunning = true;
+
+        SelectorThread() throws IOException {
+            mmSelector = Selector.open();
+            setName("NioSelectorThread");
+        }
+
+        void submit(Command command) {
+            mmCommands.add(command);
+            mmSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            SocketLog.i(TAG, "BEGIN mSelectorThread");
+            try {
+                while (mmRunning) {
+                    mmSelector.select();
+                    runCommands();
+                    Iterator<SelectionKey> keys = mmSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isConnectable()) {
+                            finishConnect(key);
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                SocketLog.e(TAG, "selector failed", e);
+            } finally {
+                closeChannels();
+                try {
+                    mmSelector.close();
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "close() of selector failed", e);
+                }
+            }
+            SocketLog.i(TAG, "END mSelectorThread");
+        }
+
+        private void runCommands() {
+            Command command;
+            while ((command = mmCommands.poll()) != null) {
+                try {
+                    command.run(this);
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "command failed", e);
+                    closeChannels();
+                    connectionFailed();
+                }
+            }
+        }
+
+        void listen() throws IOException {
+            closeChannels();
+            mmServerChannel = ServerSocketChannel.open();
+            mmServerChannel.socket().setReuseAddress(true);
+            mmServerChannel.socket().bind(new InetSocketAddress(PORT));
+            mmServerChannel.configureBlocking(false);
+            mmServerChannel.register(mmSelector, SelectionKey.OP_ACCEPT);
+            setState(STATE_LISTEN);
+        }
+
+        void connect(String ip, int port) throws IOException {
+            closeChannels();
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            setState(STATE_CONNECTING);
+            try {
+                if (channel.connect(new InetSocketAddress(ip, port))) {
+                    connected(channel);
+                } else {
+                    channel.register(mmSelector, SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                SocketLog.e(TAG, "connect() failed", e);
+                closeQuietly(channel);
+                connectionFailed();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = mmServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            if (SocketLog.isLoggable(SocketLog.DEBUG)) {
+                SocketLog.d(TAG, "A client connected. IP:{}", channel.socket().getInetAddress().getHostAddress());
+            }
+            if (mmChannel != null) {
+                // Already connected. Terminate new socket.
+                closeQuietly(channel);
+                return;
+            }
+            // Stop listening because we only want to connect to one device
+            closeQuietly(mmServerChannel);
+            mmServerChannel = null;
+            connected(channel);
+        }
+
+        private void finishConnect(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (!channel.finishConnect()) {
+                    // Still pending, the key keeps waiting for OP_CONNECT
+                    return;
+                }
+                connected(channel);
+            } catch (IOException e) {
+                SocketLog.e(TAG, "finishConnect() failed", e);
+                key.cancel();
+                closeQuietly(channel);
+                connectionFailed();
+            }
+        }
+
+        private void connected(SocketChannel channel) throws IOException {
+            SocketLog.d(TAG, "connected");
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            mmChannel = channel;
+            mmRemoteIp = channel.socket().getInetAddress().getHostAddress();
+            mmFrameCodec = mFrameCodec;
+            mmDecoder = mmFrameCodec.newDecoder();
+            releasePendingWrites();
+            mmMetrics = mMetrics.openConnection();
+            SelectionKey key = channel.keyFor(mmSelector);
+            if (key != null) {
+                // Outgoing connection, reuse the key that waited for OP_CONNECT
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                channel.register(mmSelector, SelectionKey.OP_READ);
+            }
+            if (!setState(STATE_CONNECTED)) {
+                // stop() won the race
+                closeChannels();
+                return;
+            }
+            ServiceListener listener = mServiceListener;
+            if (listener != null) {
+                listener.onDeviceConnected(mmRemoteIp);
+            }
+        }
+
+        private void read(SelectionKey key) {
+            int bytes;
+            try {
+                bytes = mmDecoder.readFrom(mmChannel);
+                if (bytes > 0) {
+                    mmReadNanos = System.nanoTime();
+                    mmMetrics.recordBytesIn(bytes);
+                    mmDecoder.decode(this);
+                }
+            } catch (IOException e) {
+                SocketLog.e(TAG, "disconnected", e);
+                bytes = -1;
+            }
+            if (bytes < 0) {
+                dropConnection(key);
+            }
+        }
+
+        /**
+         * Close the connection after a read or write failed, report it and
+         * listen again, as {@link TcpService} does.
+         */
+        private void dropConnection(SelectionKey key) {
+            key.cancel();
+            closeQuietly(mmChannel);
+            mmChannel = null;
+            releasePendingWrites();
+            closeConnection();
+            connectionLost();
+            if (mmRunning) {
+                try {
+                    listen();
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "listen() failed", e);
+                    closeChannels();
+                    connectionFailed();
+                }
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] array, int offset, int length) {
+            if (length == 0 || DeflateCompression.isControlFrame(array, offset, length)) {
+                // Heartbeat or compression offer of a TcpService peer; no
+                // hello goes back, so the peer never compresses
+                return;
+            }
+            ByteBuffer message = mmDecoder.frameView(offset, length);
+            SocketLog.dumpReceived(TAG, mmRemoteIp, message);
+            BinaryMessageListener listener = mBinaryMessageListener;
+            if (listener != null) {
+                listener.onReceived(mmRemoteIp, message);
+            }
+            mmMetrics.recordMessageIn(System.nanoTime() - mmReadNanos);
+        }
+
+        void enqueue(byte[] out, long offerNanos) {
+            if (mmChannel == null) {
+                return;
+            }
+            append(out);
+            addPendingMessage(offerNanos);
+            SelectionKey key = mmChannel.keyFor(mmSelector);
+            if (key != null && key.isValid()) {
+                flush(key);
+            }
+        }
+
+        /**
+         * Encode a frame behind the last pending buffer, or into a new
+         * pooled buffer if it does not fit.
+         */
+        private void append(byte[] out) {
+            int frameLength = out.length + mmFrameCodec.overhead(out.length);
+            PooledBuffer tail = mmPendingWrites.peekLast();
+            ByteBuffer buffer;
+            if (tail != null && tail.buffer().capacity() - tail.buffer().limit() >= frameLength) {
+                buffer = tail.buffer();
+            } else {
+                tail = BufferPool.sharedDirect().acquire(Math.max(frameLength, WRITE_BUFFER_SIZE));
+                buffer = tail.buffer();
+                buffer.limit(0);
+                mmPendingWrites.add(tail);
+            }
+            // Reopen the unused space after the limit, then flip it back
+            int position = buffer.position();
+            int start = buffer.limit();
+            buffer.position(start).limit(buffer.capacity());
+            mmFrameCodec.encode(out, 0, out.length, buffer);
+            mmBytesQueued += buffer.position() - start;
+            buffer.limit(buffer.position()).position(position);
+        }
+
+        private void addPendingMessage(long offerNanos) {
+            int count = mmPendingMessages;
+            if (count == mmPendingEnds.length) {
+                long[] ends = new long[count * 2];
+                long[] offers = new long[count * 2];
+                for (int i = 0; i < count; i++) {
+                    int index = (mmPendingHead + i) % count;
+                    ends[i] = mmPendingEnds[index];
+                    offers[i] = mmPendingOffers[index];
+                }
+                mmPendingEnds = ends;
+                mmPendingOffers = offers;
+                mmPendingHead = 0;
+            }
+            int tail = (mmPendingHead + count) % mmPendingEnds.length;
+            mmPendingEnds[tail] = mmBytesQueued;
+            mmPendingOffers[tail] = offerNanos;
+            mmPendingMessages = count + 1;
+        }
+
+        /**
+         * Record the messages whose last byte has been written.
+         */
+        private void completePendingMessages() {
+            long now = System.nanoTime();
+            int count = mmPendingMessages;
+            while (count > 0 && mmPendingEnds[mmPendingHead] <= mmBytesWritten) {
+                mmMetrics.recordMessageOut(now - mmPendingOffers[mmPendingHead]);
+                mmPendingHead = (mmPendingHead + 1) % mmPendingEnds.length;
+                count--;
+            }
+            mmPendingMessages = count;
+        }
+
+        private void flush(SelectionKey key) {
+            try {
+                // Gather every pending buffer into one write
+                int count = mmPendingWrites.size();
+                if (mmGather.length < count) {
+                    mmGather = new ByteBuffer[Math.max(count, mmGather.length * 2)];
+                }
+                int i = 0;
+                for (PooledBuffer pending : mmPendingWrites) {
+                    mmGather[i++] = pending.buffer();
+                }
+                long written = mmChannel.write(mmGather, 0, count);
+                mmBytesWritten += written;
+                mmMetrics.recordBytesOut(written);
+                completePendingMessages();
+                while (!mmPendingWrites.isEmpty() && !mmPendingWrites.peek().buffer().hasRemaining()) {
+                    mmPendingWrites.poll().release();
+                }
+                if (!mmPendingWrites.isEmpty()) {
+                    // Socket buffer is full, wait for OP_WRITE
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                SocketLog.e(TAG, "Exception during write", e);
+                dropConnection(key);
+            }
+        }
+
+        private void releasePendingWrites() {
+            PooledBuffer pending;
+            while ((pending = mmPendingWrites.poll()) != null) {
+                pending.release();
+            }
+            mmPendingHead = 0;
+            mmPendingMessages = 0;
+            mmBytesQueued = 0;
+            mmBytesWritten = 0;
+        }
+
+        /**
+         * Keep the traffic of the connection in the totals of the service.
+         */
+        private void closeConnection() {
+            synchronized (mMetrics) {
+                TransportMetrics metrics = mmMetrics;
+                if (metrics != null) {
+                    mmMetrics = null;
+                    mMetrics.closeConnection(metrics);
+                }
+            }
+        }
+
+        private void closeChannels() {
+            if (mmServerChannel != null) {
+                closeQuietly(mmServerChannel);
+                mmServerChannel = null;
+            }
+            if (mmChannel != null) {
+                closeQuietly(mmChannel);
+                mmChannel = null;
+            }
+            releasePendingWrites();
+            closeConnection();
+        }
+
+        private void closeQuietly(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                SocketLog.e(TAG, "close() of channel failed", e);
+            }
+        }
+
+        void cancel() {
+            mmRunning = false;
+            mmSelector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer borrowed from a {@link BufferPool}. The handle is recycled with
+ * its buffer, so neither may be used after {@link #release()}.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool mPool;
+    private final ByteBuffer mBuffer;
+    final int mSizeClass;
+    // Set while borrowed and leak detection is on
+    BufferPool.Leak mLeak;
+    private volatile boolean mReleased = true;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        mPool = pool;
+        mBuffer = buffer;
+        mSizeClass = sizeClass;
+    }
+
+    public ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    void acquired() {
+        mReleased = false;
+    }
+
+    /**
+     * Give the buffer back to its pool.
+     *
+     * @throws IllegalStateException if it was already released
+     */
+    public void release() {
+        release(false);
+    }
+
+    /**
+     * Give the buffer back to its pool.
+     *
+     * @param shared true to put it straight on the shared free list, for a
+     *               thread that may idle for long, e.g. the writer of one
+     *               connection, so its cache does not keep the buffer
+     * @throws IllegalStateException if it was already released
+     */
+    public void release(boolean shared) {
+        if (mReleased) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+        mReleased = true;
+        mPool.release(this, shared);
+    }
+}
@@ -0,0 +1,91 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.util.Random;
+
+/**
+ * When a client reconnects after its connection failed or was lost. The
+ * delay grows exponentially from the initial delay up to the maximum, and
+ * a random part of it is cut off so that many devices losing the same
+ * server do not all come back at the same moment. The setters return this
+ * so a policy can be built in one expression.
+ */
+public class ReconnectPolicy {
+
+    private long mInitialDelayMillis = 500;
+    private long mMaxDelayMillis = 30000;
+    private double mMultiplier = 2;
+    private double mJitter = 0.5;
+    private int mMaxAttempts;
+
+    /**
+     * Delay before the first attempt.
+     */
+    public ReconnectPolicy setInitialDelayMillis(long initialDelayMillis) {
+        if (initialDelayMillis < 0) {
+            throw new IllegalArgumentException("initialDelayMillis must not be negative");
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        return this;
+    }
+
+    /**
+     * Upper bound of the delay, however many attempts failed.
+     */
+    public ReconnectPolicy setMaxDelayMillis(long maxDelayMillis) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxDelayMillis must not be negative");
+        }
+        mMaxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    /**
+     * Factor the delay grows by after each failed attempt, at least 1.
+     */
+    public ReconnectPolicy setMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        mMultiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Part of the delay that is randomized, from 0 (fixed delays) to 1 (any
+     * delay between 0 and the computed one).
+     */
+    public ReconnectPolicy setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be in 0..1");
+        }
+        mJitter = jitter;
+        return this;
+    }
+
+    /**
+     * Attempts after which the client gives up, 0 to retry forever.
+     */
+    public ReconnectPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts must not be negative");
+        }
+        mMaxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Return the delay before the given attempt.
+     *
+     * @param attempt 0 for the first attempt after the connection went away
+     */
+    public long getDelayMillis(int attempt, Random random) {
+        double delay = mInitialDelayMillis * Math.pow(mMultiplier, attempt);
+        delay = Math.min(delay, mMaxDelayMillis);
+        delay -= delay * mJitter * random.nextDouble();
+        return (long) delay;
+    }
+}
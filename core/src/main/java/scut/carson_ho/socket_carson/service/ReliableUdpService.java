@@ -0,0 +1,863 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import scut.carson_ho.socket_carson.service.metrics.MetricsSnapshot;
+import scut.carson_ho.socket_carson.service.metrics.ServiceMetrics;
+import scut.carson_ho.socket_carson.service.metrics.StripedCounter;
+import scut.carson_ho.socket_carson.service.metrics.TransportMetrics;
+
+/**
+ * Reliable datagrams on top of another {@link SocketService}, normally a
+ * {@link UdpService}. Every message to a peer gets a sequence number and
+ * is sent again until the peer acknowledges it. Unlike TCP a lost datagram
+ * only holds back the messages behind it in ordered mode, and nothing at
+ * all in unordered mode.
+ * <p>
+ * The receiver answers every datagram with an ACK that carries the next
+ * sequence number it expects and a 64 bit selective ACK bitmap of what it
+ * already has beyond it. The sender keeps up to {@link #WINDOW_SIZE}
+ * messages in flight per peer and retransmits each one when its timeout
+ * (from the measured round trip time, RFC 6298) expires, or as soon as a
+ * datagram sent more than a quarter RTT after it was acknowledged (RACK,
+ * RFC 8985), which also recovers lost retransmissions.
+ * <pre>
+ * DATA: type(1) flags(1) session(4) seq(4) payload
+ * ACK:  type(1) session(4) expected(4) sack(8)
+ * </pre>
+ * The session is chosen at random by each sender, so a receiver notices a
+ * restarted peer and starts over at sequence 0.
+ * <p>
+ * {@link #multiWrite(byte[])} sends to every peer the service knows. A
+ * peer is forgotten after {@link #setPeerIdleTimeout(long)} without
+ * traffic, or once it stopped answering and was silent all along. A
+ * sender that was idle for half that time starts a new session, so a
+ * receiver that forgot it starts over in step.
+ * <p>
+ * {@link #getMetrics()} lists every peer as a connection. Its send latency
+ * runs from the first transmission of a message to its ACK, and its
+ * receive latency includes the time an ordered message waited for the
+ * ones before it.
+ */
+public class ReliableUdpService implements SocketService {
+    // Debugging
+    private static final String TAG = "ReliableUdpService";
+
+    /**
+     * Messages in flight per peer, also the width of the SACK bitmap.
+     */
+    public static final int WINDOW_SIZE = 64;
+    public static final int DEFAULT_MAX_PENDING = 4096;
+    public static final int DEFAULT_MAX_RETRANSMITS = 10;
+    public static final long DEFAULT_MIN_RTO_MILLIS = 20;
+    public static final long DEFAULT_PEER_IDLE_MILLIS = 60_000;
+
+    static final byte TYPE_DATA = 1;
+    static final byte TYPE_ACK = 2;
+    static final byte FLAG_ORDERED = 1;
+    static final int DATA_HEADER_SIZE = 10;
+    static final int ACK_SIZE = 17;
+
+    // Reordering that is tolerated before a datagram counts as lost
+    private static final long MIN_REORDER_WINDOW_NANOS = 1_000_000L;
+
+    // Member fields
+    private final SocketService mTransport;
+    private final ConcurrentMap<String, Peer> mPeers = new ConcurrentHashMap<>();
+    private final Random mRandom = new Random();
+    private volatile ServiceListener mServiceListener;
+    private volatile BinaryMessageListener mBinaryMessageListener;
+    private volatile boolean mOrdered = true;
+    private volatile int mMaxRetransmits = DEFAULT_MAX_RETRANSMITS;
+    private volatile int mMaxPending = DEFAULT_MAX_PENDING;
+    private volatile long mMinRtoNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_RTO_MILLIS);
+    private volatile long mPeerIdleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PEER_IDLE_MILLIS);
+    private TimerThread mTimerThread;
+
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private final StripedCounter mSent = new StripedCounter();
+    private final StripedCounter mRetransmitted = new StripedCounter();
+    private final StripedCounter mDelivered = new StripedCounter();
+    private final StripedCounter mDuplicates = new StripedCounter();
+    private final StripedCounter mDropped = new StripedCounter();
+
+    /**
+     * One datagram that waits for its ACK.
+     */
+    private static class Outgoing {
+        final int seq;
+        final byte[] packet;
+        long firstSentNanos;
+        long sentNanos;
+        long deadline;
+        int transmissions;
+
+        Outgoing(int seq, byte[] packet) {
+            this.seq = seq;
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * One message that waits for the listener.
+     */
+    private static class Incoming {
+        final ByteBuffer payload;
+        final long receivedNanos;
+
+        Incoming(ByteBuffer payload, long receivedNanos) {
+            this.payload = payload;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    public ReliableUdpService() {
+        this(new UdpService());
+    }
+
+    /**
+     * @param transport Carries the datagrams. It must deliver whole
+     *                  datagrams, may lose, duplicate and reorder them.
+     */
+    public ReliableUdpService(SocketService transport) {
+        mTransport = transport;
+        mTransport.setBinaryMessageListener(this::onPacket);
+    }
+
+    @Override
+    public void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
+        setBinaryMessageListener(receiveMessageListener != null
+                ? new StringMessageAdapter(receiveMessageListener) : null);
+    }
+
+    @Override
+    public void setBinaryMessageListener(BinaryMessageListener binaryMessageListener) {
+        mBinaryMessageListener = binaryMessageListener;
+    }
+
+    @Override
+    public void setServiceListener(ServiceListener serviceListener) {
+        mServiceListener = serviceListener;
+        mTransport.setServiceListener(serviceListener);
+    }
+
+    /**
+     * Deliver the messages of each peer in the order they were written
+     * (the default), or as soon as they arrive. This is decided by the
+     * sender and carried in every datagram.
+     */
+    public void setOrdered(boolean ordered) {
+        mOrdered = ordered;
+    }
+
+    /**
+     * Give up on a peer after a message was sent this many extra times.
+     * The peer's queued messages are dropped and an error is reported.
+     */
+    public void setMaxRetransmits(int maxRetransmits) {
+        mMaxRetransmits = maxRetransmits;
+    }
+
+    /**
+     * Messages per peer that may wait for a free slot in the window before
+     * write() drops them.
+     */
+    public void setMaxPending(int maxPending) {
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * Lower bound of the retransmission timeout. Takes effect for peers
+     * that are new afterwards.
+     */
+    public void setMinRetransmitTimeout(long millis) {
+        mMinRtoNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Forget a peer that nothing was sent to or received from for this
+     * long, keeping its traffic in the totals. Both ends should use the
+     * same value.
+     */
+    public void setPeerIdleTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("millis must be positive");
+        }
+        mPeerIdleNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public int getState() {
+        return mTransport.getState();
+    }
+
+    @Override
+    public void start() {
+        mTransport.start();
+    }
+
+    @Override
+    public void connect(String ip, int port) {
+        mTransport.connect(ip, port);
+    }
+
+    /**
+     * Stop the transport and the retransmissions. Unacknowledged messages
+     * are discarded.
+     */
+    @Override
+    public void stop() {
+        SocketLog.d(TAG, "stop");
+        synchronized (this) {
+            if (mTimerThread != null) {
+                mTimerThread.cancel();
+                mTimerThread = null;
+            }
+        }
+        mTransport.stop();
+        // Not while a snapshot is taken, the peers move into the totals
+        synchronized (mMetrics) {
+            for (Peer peer : mPeers.values()) {
+                mMetrics.closeConnection(peer.mmMetrics);
+            }
+            mPeers.clear();
+        }
+    }
+
+    /**
+     * Send a message to one peer. Never blocks: when the window is full the
+     * message waits in a queue of {@link #setMaxPending(int)} messages.
+     *
+     * @param out The bytes to write, must not be changed afterwards
+     * @param ip  The peer, must not be null
+     */
+    @Override
+    public void write(byte[] out, String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("Reliable datagrams need a peer address");
+        }
+        while (true) {
+            Peer peer = peer(ip);
+            boolean wasIdle;
+            List<byte[]> packets;
+            synchronized (peer) {
+                if (peer.mmForgotten) {
+                    // The timer dropped it meanwhile, a new one takes over
+                    continue;
+                }
+                long now = System.nanoTime();
+                wasIdle = peer.mmBase == peer.mmNextSeq;
+                if (wasIdle && peer.mmNextSeq != 0 && now - peer.mmLastActive > mPeerIdleNanos / 2) {
+                    // The receiver may have forgotten this session
+                    peer.reset();
+                }
+                peer.mmLastActive = now;
+                if (peer.mmPending.isEmpty() && peer.hasWindow()) {
+                    peer.send(out);
+                } else if (peer.mmPending.size() < mMaxPending) {
+                    peer.mmPending.add(out);
+                } else {
+                    mDropped.increment();
+                    peer.mmMetrics.recordDropped();
+                    SocketLog.w(TAG, "send queue of {} is full, message dropped", ip);
+                    return;
+                }
+                packets = peer.takeOutbox();
+            }
+            send(ip, packets);
+            if (wasIdle) {
+                // The timer may be sleeping until an idle deadline
+                timerThread().kick();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Send a message to every peer that was written to or heard from
+     * within the idle timeout.
+     */
+    @Override
+    public void multiWrite(byte[] out) {
+        if (mPeers.isEmpty()) {
+            notifyError("No peer to write to");
+            return;
+        }
+        for (String address : mPeers.keySet()) {
+            write(out, address);
+        }
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        // Peer monitors first, a forgotten peer takes the metrics lock in its own
+        Map<String, Integer> queued = new HashMap<>();
+        for (Peer peer : mPeers.values()) {
+            synchronized (peer) {
+                queued.put(peer.mmAddress, peer.mmNextSeq - peer.mmBase + peer.mmPending.size());
+            }
+        }
+        List<MetricsSnapshot> peers = new ArrayList<>();
+        synchronized (mMetrics) {
+            for (Peer peer : mPeers.values()) {
+                Integer depth = queued.get(peer.mmAddress);
+                peers.add(peer.mmMetrics.snapshot(peer.mmAddress, peer.mmAddress, depth != null ? depth : 0));
+            }
+            return mMetrics.snapshot(TAG, 0, peers);
+        }
+    }
+
+    /**
+     * Messages sent for the first time.
+     */
+    public long getSentCount() {
+        return mSent.sum();
+    }
+
+    /**
+     * Datagrams sent again after a timeout or a hole in a selective ACK.
+     */
+    public long getRetransmitCount() {
+        return mRetransmitted.sum();
+    }
+
+    /**
+     * Messages handed to the listener.
+     */
+    public long getDeliveredCount() {
+        return mDelivered.sum();
+    }
+
+    /**
+     * Datagrams received again, usually after a lost ACK.
+     */
+    public long getDuplicateCount() {
+        return mDuplicates.sum();
+    }
+
+    /**
+     * Messages dropped by write() because the queue of the peer was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+    /**
+     * Smoothed round trip time to a peer, or -1 before the first sample.
+     */
+    public long getSmoothedRttMicros(String ip) {
+        Peer peer = mPeers.get(ip);
+        if (peer == null) {
+            return -1;
+        }
+        synchronized (peer) {
+            long rtt = peer.mmRtt.smoothedRtt();
+            return rtt > 0 ? TimeUnit.NANOSECONDS.toMicros(rtt) : -1;
+        }
+    }
+
+    private Peer peer(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            Peer created = new Peer(address);
+            peer = mPeers.putIfAbsent(address, created);
+            if (peer == null) {
+                peer = created;
+                // Even a peer that only sends to us needs an idle deadline
+                timerThread().kick();
+            }
+        }
+        return peer;
+    }
+
+    /**
+     * Drop a peer and keep its traffic in the totals. Called with the
+     * monitor of the peer held.
+     */
+    private void forget(Peer peer) {
+        peer.mmForgotten = true;
+        synchronized (mMetrics) {
+            if (mPeers.remove(peer.mmAddress, peer)) {
+                mMetrics.closeConnection(peer.mmMetrics);
+            }
+        }
+        SocketLog.d(TAG, "forgot peer {}", peer.mmAddress);
+    }
+
+    /**
+     * Hand what a peer queued to the transport, after its monitor was
+     * released.
+     */
+    private void send(String address, List<byte[]> packets) {
+        if (packets == null) {
+            return;
+        }
+        for (int i = 0; i < packets.size(); i++) {
+            mTransport.write(packets.get(i), address);
+        }
+    }
+
+    private synchronized TimerThread timerThread() {
+        if (mTimerThread == null) {
+            mTimerThread = new TimerThread();
+            mTimerThread.start();
+        }
+        return mTimerThread;
+    }
+
+    private void notifyError(String message) {
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onError(message);
+        }
+    }
+
+    /**
+     * Called by the transport for every datagram.
+     */
+    private void onPacket(String address, ByteBuffer packet) {
+        if (!packet.hasRemaining()) {
+            return;
+        }
+        byte type = packet.get();
+        if (type == TYPE_DATA && packet.remaining() >= DATA_HEADER_SIZE - 1) {
+            onData(address, packet);
+        } else if (type == TYPE_ACK && packet.remaining() >= ACK_SIZE - 1) {
+            onAck(address, packet);
+        } else {
+            SocketLog.w(TAG, "malformed datagram from {}, dropped", address);
+        }
+    }
+
+    private void onData(String address, ByteBuffer packet) {
+        byte flags = packet.get();
+        int session = packet.getInt();
+        int seq = packet.getInt();
+        while (true) {
+            Peer peer = peer(address);
+            byte[] ack;
+            synchronized (peer) {
+                if (peer.mmForgotten) {
+                    continue;
+                }
+                peer.mmLastActive = peer.mmLastHeard = System.nanoTime();
+                peer.mmMetrics.recordBytesIn(packet.limit());
+                peer.receive(flags, session, seq, packet);
+                peer.mmMetrics.recordBytesOut(ACK_SIZE);
+                ack = peer.ack();
+            }
+            mTransport.write(ack, address);
+            // The packet stays valid until then, the transport waits for us
+            peer.deliverInbox();
+            return;
+        }
+    }
+
+    private void onAck(String address, ByteBuffer packet) {
+        int session = packet.getInt();
+        int expected = packet.getInt();
+        long sack = packet.getLong();
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            return;
+        }
+        List<byte[]> packets;
+        synchronized (peer) {
+            if (peer.mmForgotten) {
+                return;
+            }
+            peer.mmLastActive = peer.mmLastHeard = System.nanoTime();
+            peer.mmMetrics.recordBytesIn(packet.limit());
+            if (session == peer.mmSession) {
+                peer.acknowledge(expected, sack);
+            }
+            packets = peer.takeOutbox();
+        }
+        send(address, packets);
+    }
+
+    /**
+     * Send and receive state of one remote address. Guarded by its own
+     * monitor, which is never held while the transport or the listener
+     * runs: datagrams wait in the outbox and messages in the inbox until
+     * it is released.
+     */
+    private class Peer {
+        final String mmAddress;
+        final TransportMetrics mmMetrics = mMetrics.openConnection();
+
+        // Send side: mmBase is the oldest unacknowledged sequence number
+        int mmSession;
+        int mmBase;
+        int mmNextSeq;
+        final Outgoing[] mmWindow = new Outgoing[WINDOW_SIZE];
+        final ArrayDeque<byte[]> mmPending = new ArrayDeque<>();
+        final RttEstimator mmRtt = new RttEstimator(mMinRtoNanos);
+        // Send time of the newest datagram that was acknowledged
+        long mmNewestAckedSent;
+
+        // Receive side: bit i of mmReceived is sequence mmExpected + 1 + i
+        boolean mmReceiving;
+        int mmRemoteSession;
+        int mmExpected;
+        long mmReceived;
+        final byte[][] mmBuffered = new byte[WINDOW_SIZE][];
+        final long[] mmBufferedNanos = new long[WINDOW_SIZE];
+
+        // Datagrams to send, null when empty
+        List<byte[]> mmOutbox;
+        // Messages in the order they are due, taken out one by one under
+        // mmDeliveryLock, which is held while the listener runs
+        final ArrayDeque<Incoming> mmInbox = new ArrayDeque<>();
+        final Object mmDeliveryLock = new Object();
+
+        // Last write to or datagram from the peer, and last datagram alone
+        long mmLastActive;
+        long mmLastHeard;
+        // Stopped answering without a word since the message it failed on
+        boolean mmSilent;
+        // Removed from mPeers, a new Peer takes over the address
+        boolean mmForgotten;
+
+        Peer(String address) {
+            mmAddress = address;
+            mmSession = mRandom.nextInt();
+            mmNewestAckedSent = mmLastActive = mmLastHeard = System.nanoTime();
+        }
+
+        /**
+         * @return When the peer may be forgotten, or Long.MAX_VALUE while
+         * messages are in flight, queued or held back for ordering
+         */
+        long idleDeadline() {
+            if (mmBase != mmNextSeq || !mmPending.isEmpty() || mmReceived != 0) {
+                return Long.MAX_VALUE;
+            }
+            return mmLastActive + mPeerIdleNanos;
+        }
+
+        boolean hasWindow() {
+            return mmNextSeq - mmBase < WINDOW_SIZE;
+        }
+
+        Outgoing slot(int seq) {
+            return mmWindow[seq & (WINDOW_SIZE - 1)];
+        }
+
+        void send(byte[] payload) {
+            int seq = mmNextSeq++;
+            byte[] packet = new byte[DATA_HEADER_SIZE + payload.length];
+            ByteBuffer.wrap(packet)
+                    .put(TYPE_DATA)
+                    .put(mOrdered ? FLAG_ORDERED : 0)
+                    .putInt(mmSession)
+                    .putInt(seq)
+                    .put(payload);
+            Outgoing outgoing = new Outgoing(seq, packet);
+            mmWindow[seq & (WINDOW_SIZE - 1)] = outgoing;
+            mSent.increment();
+            outgoing.firstSentNanos = System.nanoTime();
+            transmit(outgoing, outgoing.firstSentNanos);
+        }
+
+        void transmit(Outgoing outgoing, long now) {
+            outgoing.transmissions++;
+            outgoing.sentNanos = now;
+            outgoing.deadline = now + mmRtt.rto(outgoing.transmissions);
+            mmMetrics.recordBytesOut(outgoing.packet.length);
+            if (mmOutbox == null) {
+                mmOutbox = new ArrayList<>();
+            }
+            mmOutbox.add(outgoing.packet);
+        }
+
+        /**
+         * @return What transmit() queued, or null
+         */
+        List<byte[]> takeOutbox() {
+            List<byte[]> packets = mmOutbox;
+            mmOutbox = null;
+            return packets;
+        }
+
+        void retransmit(Outgoing outgoing, long now) {
+            mRetransmitted.increment();
+            transmit(outgoing, now);
+        }
+
+        /**
+         * Drop every message the ACK covers, take an RTT sample from the
+         * newest one that was sent only once (Karn's rule), retransmit what
+         * was overtaken and fill the window up again.
+         */
+        void acknowledge(int expected, long sack) {
+            long now = System.nanoTime();
+            Outgoing sample = null;
+            for (int seq = mmBase; seq - mmNextSeq < 0; seq++) {
+                Outgoing outgoing = slot(seq);
+                if (outgoing == null) {
+                    continue;
+                }
+                int offset = seq - expected;
+                if (offset < 0 || (offset > 0 && offset <= WINDOW_SIZE && (sack & (1L << (offset - 1))) != 0)) {
+                    if (outgoing.transmissions == 1) {
+                        sample = outgoing;
+                    }
+                    if (outgoing.sentNanos - mmNewestAckedSent > 0) {
+                        mmNewestAckedSent = outgoing.sentNanos;
+                    }
+                    mmMetrics.recordMessageOut(now - outgoing.firstSentNanos);
+                    mmWindow[seq & (WINDOW_SIZE - 1)] = null;
+                }
+            }
+            if (sample != null) {
+                mmRtt.sample(now - sample.sentNanos);
+            }
+            // Anything sent well before an acknowledged datagram is lost
+            long lostBefore = mmNewestAckedSent
+                    - Math.max(mmRtt.smoothedRtt() / 4, MIN_REORDER_WINDOW_NANOS);
+            for (int seq = mmBase; seq - mmNextSeq < 0; seq++) {
+                Outgoing outgoing = slot(seq);
+                if (outgoing != null && outgoing.sentNanos - lostBefore < 0) {
+                    retransmit(outgoing, now);
+                }
+            }
+            while (mmBase != mmNextSeq && slot(mmBase) == null) {
+                mmBase++;
+            }
+            while (!mmPending.isEmpty() && hasWindow()) {
+                send(mmPending.poll());
+            }
+        }
+
+        /**
+         * Retransmit what timed out.
+         *
+         * @return the next deadline, Long.MAX_VALUE if nothing is in
+         * flight, or Long.MIN_VALUE if the peer stopped answering
+         */
+        long checkTimeouts(long now) {
+            long next = Long.MAX_VALUE;
+            for (int seq = mmBase; seq - mmNextSeq < 0; seq++) {
+                Outgoing outgoing = slot(seq);
+                if (outgoing == null) {
+                    continue;
+                }
+                if (outgoing.deadline - now <= 0) {
+                    if (outgoing.transmissions > mMaxRetransmits) {
+                        mmSilent = mmLastHeard - outgoing.firstSentNanos < 0;
+                        reset();
+                        return Long.MIN_VALUE;
+                    }
+                    retransmit(outgoing, now);
+                }
+                if (next == Long.MAX_VALUE || outgoing.deadline - next < 0) {
+                    next = outgoing.deadline;
+                }
+            }
+            return next;
+        }
+
+        /**
+         * Forget everything that was sent and start a new session.
+         */
+        private void reset() {
+            int dropped = mmNextSeq - mmBase + mmPending.size();
+            mDropped.add(dropped);
+            mmMetrics.recordDropped(dropped);
+            mmSession = mRandom.nextInt();
+            mmBase = 0;
+            mmNextSeq = 0;
+            mmPending.clear();
+            mmOutbox = null;
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                mmWindow[i] = null;
+            }
+        }
+
+        void receive(byte flags, int session, int seq, ByteBuffer payload) {
+            long now = System.nanoTime();
+            if (!mmReceiving || session != mmRemoteSession) {
+                // New or restarted sender
+                mmReceiving = true;
+                mmRemoteSession = session;
+                mmExpected = 0;
+                mmReceived = 0;
+                for (int i = 0; i < WINDOW_SIZE; i++) {
+                    mmBuffered[i] = null;
+                }
+            }
+            int offset = seq - mmExpected;
+            if (offset == 0) {
+                enqueue(payload, now);
+                mmExpected++;
+                // Deliver what was waiting behind this one
+                while (true) {
+                    boolean next = (mmReceived & 1) != 0;
+                    mmReceived >>>= 1;
+                    if (!next) {
+                        break;
+                    }
+                    int index = mmExpected & (WINDOW_SIZE - 1);
+                    byte[] buffered = mmBuffered[index];
+                    if (buffered != null) {
+                        mmBuffered[index] = null;
+                        enqueue(ByteBuffer.wrap(buffered).asReadOnlyBuffer(), mmBufferedNanos[index]);
+                    }
+                    mmExpected++;
+                }
+            } else if (offset > 0 && offset <= WINDOW_SIZE) {
+                long bit = 1L << (offset - 1);
+                if ((mmReceived & bit) != 0) {
+                    mDuplicates.increment();
+                    return;
+                }
+                mmReceived |= bit;
+                if ((flags & FLAG_ORDERED) != 0) {
+                    byte[] copy = new byte[payload.remaining()];
+                    payload.get(copy);
+                    mmBuffered[seq & (WINDOW_SIZE - 1)] = copy;
+                    mmBufferedNanos[seq & (WINDOW_SIZE - 1)] = now;
+                } else {
+                    enqueue(payload, now);
+                }
+            } else {
+                // Already delivered, or outside the window of the sender
+                mDuplicates.increment();
+            }
+        }
+
+        /**
+         * @param receivedNanos When the datagram with the message arrived
+         */
+        private void enqueue(ByteBuffer payload, long receivedNanos) {
+            mmInbox.add(new Incoming(payload, receivedNanos));
+        }
+
+        /**
+         * Hand the inbox to the listener, called without the monitor by
+         * every thread that added to it. A thread only returns once its
+         * messages were delivered, by itself or by the one before it.
+         */
+        void deliverInbox() {
+            synchronized (mmDeliveryLock) {
+                while (true) {
+                    Incoming incoming;
+                    synchronized (this) {
+                        incoming = mmInbox.poll();
+                    }
+                    if (incoming == null) {
+                        return;
+                    }
+                    mDelivered.increment();
+                    BinaryMessageListener listener = mBinaryMessageListener;
+                    if (listener != null) {
+                        listener.onReceived(mmAddress, incoming.payload);
+                    }
+                    mmMetrics.recordMessageIn(System.nanoTime() - incoming.receivedNanos);
+                }
+            }
+        }
+
+        byte[] ack() {
+            byte[] ack = new byte[ACK_SIZE];
+            ByteBuffer.wrap(ack)
+                    .put(TYPE_ACK)
+                    .putInt(mmRemoteSession)
+                    .putInt(mmExpected)
+                    .putLong(mmReceived);
+            return ack;
+        }
+    }
+
+    /**
+     * Sleeps until the earliest retransmission or idle deadline of all
+     * peers, or without a deadline while there are none. Forgets the peers
+     * that are idle or gone.
+     */
+    private class TimerThread extends Thread {
+        private boolean mmKicked;
+        private volatile boolean mmRunning = true;
+
+        TimerThread() {
+            setName("ReliableUdpTimer");
+            setDaemon(true);
+        }
+
+        synchronized void kick() {
+            mmKicked = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            SocketLog.i(TAG, "BEGIN mTimerThread");
+            List<String> failed = new ArrayList<>();
+            try {
+                while (mmRunning) {
+                    long now = System.nanoTime();
+                    long next = Long.MAX_VALUE;
+                    for (Peer peer : mPeers.values()) {
+                        long deadline;
+                        List<byte[]> packets;
+                        synchronized (peer) {
+                            deadline = peer.checkTimeouts(now);
+                            packets = peer.takeOutbox();
+                            if (deadline == Long.MIN_VALUE) {
+                                failed.add(peer.mmAddress);
+                            }
+                            if (deadline == Long.MAX_VALUE || deadline == Long.MIN_VALUE) {
+                                deadline = peer.idleDeadline();
+                                if (peer.mmSilent || (deadline != Long.MAX_VALUE && deadline - now <= 0)) {
+                                    forget(peer);
+                                    continue;
+                                }
+                            }
+                        }
+                        send(peer.mmAddress, packets);
+                        if (next == Long.MAX_VALUE || deadline - next < 0) {
+                            next = deadline;
+                        }
+                    }
+                    for (int i = 0; i < failed.size(); i++) {
+                        notifyError("No acknowledgement from " + failed.get(i));
+                    }
+                    failed.clear();
+                    synchronized (this) {
+                        if (mmKicked) {
+                            mmKicked = false;
+                            continue;
+                        }
+                        if (next == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            long nanos = next - System.nanoTime();
+                            if (nanos > 0) {
+                                // Round up, waking early would only spin
+                                wait(TimeUnit.NANOSECONDS.toMillis(nanos) + 1);
+                            }
+                        }
+                        mmKicked = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // cancel()
+            }
+            SocketLog.i(TAG, "END mTimerThread");
+        }
+
+        void cancel() {
+            mmRunning = false;
+            interrupt();
+        }
+    }
+}
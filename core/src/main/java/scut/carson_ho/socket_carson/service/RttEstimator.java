@@ -0,0 +1,51 @@
+package scut.carson_ho.socket_carson.service;
+
+/**
+ * Retransmission timeout from round trip samples as in RFC 6298: a smoothed
+ * RTT plus four times its variation. The RFC's one second floor is far too
+ * slow for a LAN, so the floor is configurable.
+ */
+final class RttEstimator {
+
+    static final long INITIAL_RTO_NANOS = 500_000_000L;
+    static final long MAX_RTO_NANOS = 10_000_000_000L;
+    // Clock granularity G of the RFC
+    private static final long GRANULARITY_NANOS = 1_000_000L;
+
+    private final long mMinRtoNanos;
+    private long mSmoothedRtt;
+    private long mRttVariation;
+    private long mRto = INITIAL_RTO_NANOS;
+
+    RttEstimator(long minRtoNanos) {
+        mMinRtoNanos = minRtoNanos;
+    }
+
+    void sample(long rttNanos) {
+        if (mSmoothedRtt == 0) {
+            mSmoothedRtt = rttNanos;
+            mRttVariation = rttNanos / 2;
+        } else {
+            mRttVariation = (3 * mRttVariation + Math.abs(mSmoothedRtt - rttNanos)) / 4;
+            mSmoothedRtt = (7 * mSmoothedRtt + rttNanos) / 8;
+        }
+        long rto = mSmoothedRtt + Math.max(GRANULARITY_NANOS, 4 * mRttVariation);
+        mRto = Math.min(Math.max(rto, mMinRtoNanos), MAX_RTO_NANOS);
+    }
+
+    /**
+     * Timeout of a datagram that has been sent {@code transmissions} times,
+     * doubled for every retransmission.
+     */
+    long rto(int transmissions) {
+        int shift = Math.min(transmissions - 1, 16);
+        return Math.min(mRto << shift, MAX_RTO_NANOS);
+    }
+
+    /**
+     * Smoothed RTT, 0 before the first sample.
+     */
+    long smoothedRtt() {
+        return mSmoothedRtt;
+    }
+}
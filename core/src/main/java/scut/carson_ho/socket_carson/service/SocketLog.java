@@ -0,0 +1,262 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging used by the services. It writes to java.util.logging unless the
+ * platform installs its own {@link Sink}, e.g. one backed by android.util.Log.
+ * <p>
+ * Messages below {@link #setLevel(int)} are dropped before anything is
+ * built. Use the overloads that take a pattern with {@code {}}
+ * placeholders instead of concatenating: they format, and box primitive
+ * arguments, only when the level is enabled. An argument that is costly
+ * to get goes behind {@link #isLoggable(int)}. Release
+ * builds of the app remove every {@code v()}, {@code d()} and dump call,
+ * see its proguard-rules.pro.
+ */
+public final class SocketLog {
+
+    // Priorities, same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public interface Sink {
+        void log(int priority, String tag, String msg, Throwable tr);
+    }
+
+    private static final Sink JUL_SINK = new Sink() {
+        @Override
+        public void log(int priority, String tag, String msg, Throwable tr) {
+            Level level;
+            if (priority >= ERROR) {
+                level = Level.SEVERE;
+            } else if (priority == WARN) {
+                level = Level.WARNING;
+            } else if (priority == INFO) {
+                level = Level.INFO;
+            } else if (priority == DEBUG) {
+                level = Level.FINE;
+            } else {
+                level = Level.FINER;
+            }
+            Logger.getLogger(tag).log(level, msg, tr);
+        }
+    };
+
+    private static volatile Sink sSink = JUL_SINK;
+    private static volatile int sLevel = DEBUG;
+    private static volatile int sPayloadDumpLimit;
+
+    private SocketLog() {
+    }
+
+    /**
+     * Send all service logging to the given sink, or back to
+     * java.util.logging when it is null.
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink != null ? sink : JUL_SINK;
+    }
+
+    /**
+     * Drop messages below the given priority. The default is
+     * {@link #DEBUG}.
+     */
+    public static void setLevel(int priority) {
+        sLevel = priority;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= sLevel;
+    }
+
+    /**
+     * Log the first bytes of every message sent and received, in hex, at
+     * {@link #VERBOSE}. Off by default, payloads may be private.
+     *
+     * @param maxBytes Bytes shown per message, 0 to turn dumps off
+     */
+    public static void setPayloadDumpLimit(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        sPayloadDumpLimit = maxBytes;
+    }
+
+    public static void v(String tag, String msg) {
+        log(VERBOSE, tag, msg, null);
+    }
+
+    public static void v(String tag, String pattern, Object arg) {
+        if (isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, format(pattern, arg, null), null);
+        }
+    }
+
+    public static void v(String tag, String pattern, long arg) {
+        if (isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, format(pattern, arg, null), null);
+        }
+    }
+
+    public static void d(String tag, String msg) {
+        log(DEBUG, tag, msg, null);
+    }
+
+    public static void d(String tag, String pattern, Object arg) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, format(pattern, arg, null), null);
+        }
+    }
+
+    public static void d(String tag, String pattern, long arg) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, format(pattern, arg, null), null);
+        }
+    }
+
+    public static void d(String tag, String pattern, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, format(pattern, arg1, arg2), null);
+        }
+    }
+
+    public static void d(String tag, String pattern, Object arg1, long arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, format(pattern, arg1, arg2), null);
+        }
+    }
+
+    public static void d(String tag, String pattern, long arg1, Object arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, format(pattern, arg1, arg2), null);
+        }
+    }
+
+    public static void d(String tag, String pattern, long arg1, long arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, format(pattern, arg1, arg2), null);
+        }
+    }
+
+    public static void i(String tag, String msg) {
+        log(INFO, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg) {
+        log(WARN, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        log(WARN, tag, msg, tr);
+    }
+
+    public static void w(String tag, String pattern, Object arg) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, format(pattern, arg, null), null);
+        }
+    }
+
+    public static void w(String tag, String pattern, long arg) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, format(pattern, arg, null), null);
+        }
+    }
+
+    public static void w(String tag, String pattern, Object arg1, Object arg2) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, format(pattern, arg1, arg2), null);
+        }
+    }
+
+    public static void w(String tag, String pattern, Object arg1, long arg2) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, format(pattern, arg1, arg2), null);
+        }
+    }
+
+    public static void w(String tag, String pattern, Object arg, Throwable tr) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, format(pattern, arg, null), tr);
+        }
+    }
+
+    public static void e(String tag, String msg) {
+        log(ERROR, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        log(ERROR, tag, msg, tr);
+    }
+
+    /**
+     * Dump a received message if payload dumps are on. The buffer is not
+     * moved.
+     */
+    public static void dumpReceived(String tag, String peer, ByteBuffer message) {
+        int limit = sPayloadDumpLimit;
+        if (limit > 0 && isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, dump("from ", peer, message, message.position(), message.remaining(), limit), null);
+        }
+    }
+
+    /**
+     * Dump a message that is about to be sent if payload dumps are on.
+     */
+    public static void dumpSent(String tag, String peer, byte[] message) {
+        int limit = sPayloadDumpLimit;
+        if (limit > 0 && isLoggable(VERBOSE)) {
+            log(VERBOSE, tag, dump("to ", peer, ByteBuffer.wrap(message), 0, message.length, limit), null);
+        }
+    }
+
+    private static void log(int priority, String tag, String msg, Throwable tr) {
+        if (priority >= sLevel) {
+            sSink.log(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Replace the first two {@code {}} of the pattern with the arguments.
+     */
+    static String format(String pattern, Object arg1, Object arg2) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 32);
+        int start = 0;
+        int used = 0;
+        while (used < 2) {
+            int index = pattern.indexOf("{}", start);
+            if (index < 0) {
+                break;
+            }
+            sb.append(pattern, start, index).append(used == 0 ? arg1 : arg2);
+            start = index + 2;
+            used++;
+        }
+        return sb.append(pattern, start, pattern.length()).toString();
+    }
+
+    static String dump(String direction, String peer, ByteBuffer data, int offset, int length, int limit) {
+        int shown = Math.min(length, limit);
+        StringBuilder sb = new StringBuilder(32 + shown * 3);
+        sb.append(length).append(" bytes ").append(direction).append(peer).append(':');
+        for (int i = 0; i < shown; i++) {
+            int b = data.get(offset + i);
+            sb.append(' ').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        if (shown < length) {
+            sb.append(" ...");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.nio.ByteBuffer;
+
+import scut.carson_ho.socket_carson.service.metrics.MetricsSnapshot;
+
+public interface SocketService {
+
+    int PORT = 8191;
+
+    // Connection states, see ConnectionState
+    int STATE_NONE = 0;       // we're doing nothing
+    int STATE_LISTEN = 1;     // now listening for incoming connections
+    int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    interface ReceiveMessageListener {
+        void onReceived(String message);
+    }
+
+    /**
+     * Receives messages without any copy or charset decoding.
+     */
+    interface BinaryMessageListener {
+        /**
+         * @param peer    The address the message came from
+         * @param message A read-only view of the receive buffer. It is only
+         *                valid until this method returns and must be copied
+         *                to be kept.
+         */
+        void onReceived(String peer, ByteBuffer message);
+    }
+
+    /**
+     * Connection events for the UI. Called on the service's own threads.
+     */
+    interface ServiceListener {
+        void onStateChanged(int state);
+
+        /**
+         * @param peer The address of the remote side, or null if unknown
+         */
+        void onDeviceConnected(String peer);
+
+        void onError(String message);
+    }
+
+    /**
+     * Decode every message as a String. This replaces any binary listener.
+     *
+     * @see StringMessageAdapter
+     */
+    void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener);
+
+    void setBinaryMessageListener(BinaryMessageListener binaryMessageListener);
+
+    void setServiceListener(ServiceListener serviceListener);
+
+    /**
+     * Return the current connection state.
+     */
+    int getState();
+
+    /**
+     * Start the chat service. Specifically start AcceptThread to begin a
+     * session in listening (server) mode. Called by the Activity onResume()
+     */
+    void start();
+
+    void connect(String ip, int port);
+
+    /**
+     * Stop all threads
+     */
+    void stop();
+
+    /**
+     * Write to the ConnectedThread in an unsynchronized manner
+     *
+     * @param out The bytes to write
+     * @see TcpService.ConnectedThread#write(byte[])
+     */
+    void write(byte[] out, String ip);
+
+    void multiWrite(byte[] out);
+
+    /**
+     * Return the traffic counters and latencies since the service was
+     * created, with one entry per open connection. Cheap enough to be
+     * scraped every few seconds; recording them costs no locks.
+     */
+    MetricsSnapshot getMetrics();
+}
@@ -0,0 +1,76 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes binary messages into Strings for a
+ * {@link SocketService.ReceiveMessageListener}. Only listeners that want
+ * text pay for the charset decoding. Every receiving thread keeps its own
+ * decoder and char buffer, so the String itself is the only allocation.
+ */
+public class StringMessageAdapter implements SocketService.BinaryMessageListener {
+
+    /**
+     * A text listener that also wants to know where a message came from.
+     */
+    public interface TextMessageListener {
+        void onReceived(String peer, String message);
+    }
+
+    private final TextMessageListener mListener;
+    private final Charset mCharset;
+    private final ThreadLocal<Decoder> mDecoder = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder(mCharset);
+        }
+    };
+
+    private static class Decoder {
+        final CharsetDecoder decoder;
+        CharBuffer chars = CharBuffer.allocate(256);
+
+        Decoder(Charset charset) {
+            // Same replacement as Charset.decode()
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    public StringMessageAdapter(SocketService.ReceiveMessageListener listener) {
+        this(listener, Charset.forName("UTF-8"));
+    }
+
+    public StringMessageAdapter(SocketService.ReceiveMessageListener listener, Charset charset) {
+        this((peer, message) -> listener.onReceived(message), charset);
+    }
+
+    public StringMessageAdapter(TextMessageListener listener) {
+        this(listener, Charset.forName("UTF-8"));
+    }
+
+    public StringMessageAdapter(TextMessageListener listener, Charset charset) {
+        mListener = listener;
+        mCharset = charset;
+    }
+
+    @Override
+    public void onReceived(String peer, ByteBuffer message) {
+        Decoder d = mDecoder.get();
+        int maxChars = (int) (message.remaining() * (double) d.decoder.maxCharsPerByte()) + 1;
+        if (d.chars.capacity() < maxChars) {
+            d.chars = CharBuffer.allocate(maxChars);
+        }
+        d.chars.clear();
+        d.decoder.reset();
+        d.decoder.decode(message, d.chars, true);
+        d.decoder.flush(d.chars);
+        d.chars.flip();
+        mListener.onReceived(peer, d.chars.toString());
+    }
+}
@@ -0,0 +1,1302 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import scut.carson_ho.socket_carson.service.codec.DeflateCompression;
+import scut.carson_ho.socket_carson.service.codec.FrameCodec;
+import scut.carson_ho.socket_carson.service.codec.FrameDecoder;
+import scut.carson_ho.socket_carson.service.codec.VarintFrameCodec;
+import scut.carson_ho.socket_carson.service.metrics.MetricsSnapshot;
+import scut.carson_ho.socket_carson.service.metrics.ServiceMetrics;
+import scut.carson_ho.socket_carson.service.metrics.TransportMetrics;
+
+/**
+ * This class does all the work for setting up and managing Bluetooth
+ * connections with other devices. It has a thread that listens for
+ * incoming connections, a thread for connecting with a device, and a
+ * thread for performing data transmissions when connected.
+ * <p>
+ * In multi-client mode the accept thread keeps running after the first
+ * connection and every accepted socket gets its own {@link ConnectedThread},
+ * identified by a connection id.
+ * <p>
+ * With a {@link TlsConfig} both the client and the server side speak TLS,
+ * and a client resumes its session when it reconnects. With a
+ * {@link DeflateCompression} large messages are deflated before they are
+ * framed.
+ * <p>
+ * The loops run on platform threads by default. On a Java 21+ server the
+ * service can be built with {@link ThreadMode#VIRTUAL} to keep the same
+ * blocking code but hold many more idle connections.
+ */
+public class TcpService implements SocketService {
+    // Debugging
+    private static final String TAG = "TcpService";
+
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_WRITE_BATCH = 64;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    // Zero-length frame, sent when a connection is quiet and never delivered
+    private static final byte[] HEARTBEAT = new byte[0];
+
+    // Member fields
+    private volatile ServiceListener mServiceListener;
+    private AcceptThread mAcceptThread;
+    private ConnectThread mConnectThread;
+    private ReconnectThread mReconnectThread;
+    private final Map<Integer, ConnectedThread> mConnections = new ConcurrentHashMap<>();
+    // Connections whose metrics are not in the totals yet, guarded by mMetrics
+    private final List<ConnectedThread> mMeasured = new ArrayList<>();
+    private final AtomicInteger mNextConnectionId = new AtomicInteger();
+    private final boolean mMultiClient;
+    private final ThreadMode mThreadMode;
+
+    private final ConnectionState mState = new ConnectionState(this::onStateChanged);
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private int mWriteQueueCapacity = WriteQueue.DEFAULT_CAPACITY;
+    private WriteQueue.BackpressurePolicy mBackpressurePolicy = WriteQueue.BackpressurePolicy.BLOCK;
+    private volatile BinaryMessageListener mBinaryMessageListener;
+    private volatile FrameCodec mFrameCodec = new VarintFrameCodec();
+
+    // Client mode: the host given to connect(), null in server mode
+    private String mConnectIp;
+    private int mConnectPort;
+    private ReconnectPolicy mReconnectPolicy;
+    private int mReconnectAttempt;
+    private final Random mRandom = new Random();
+    private int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private long mHeartbeatIntervalMillis;
+    private long mIdleTimeoutMillis;
+    private TlsConfig mTlsConfig;
+    private DeflateCompression mCompression;
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session.
+     */
+    public TcpService() {
+        this(false);
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session.
+     *
+     * @param multiClient true to keep accepting connections on {@link #PORT}
+     *                    after the first one
+     */
+    public TcpService(boolean multiClient) {
+        this(multiClient, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session.
+     *
+     * @param multiClient true to keep accepting connections on {@link #PORT}
+     *                    after the first one
+     * @param threadMode  what the accept, connect and per-connection loops
+     *                    run on. {@link ThreadMode#VIRTUAL} falls back to
+     *                    platform threads when the VM has no virtual threads.
+     */
+    public TcpService(boolean multiClient, ThreadMode threadMode) {
+        mMultiClient = multiClient;
+        if (!threadMode.isSupported()) {
+            SocketLog.w(TAG, "{} threads are not supported, using {}", threadMode, ThreadMode.PLATFORM);
+            threadMode = ThreadMode.PLATFORM;
+        }
+        mThreadMode = threadMode;
+    }
+
+    /**
+     * Return the mode the loops of this service run in.
+     */
+    public ThreadMode getThreadMode() {
+        return mThreadMode;
+    }
+
+    @Override
+    public void setServiceListener(ServiceListener serviceListener) {
+        mServiceListener = serviceListener;
+    }
+
+    @Override
+    public void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
+        setBinaryMessageListener(receiveMessageListener != null
+                ? new StringMessageAdapter(receiveMessageListener) : null);
+    }
+
+    @Override
+    public void setBinaryMessageListener(BinaryMessageListener binaryMessageListener) {
+        mBinaryMessageListener = binaryMessageListener;
+    }
+
+    /**
+     * Set the codec that splits the stream into messages. Both peers must
+     * use the same codec. Takes effect for connections opened afterwards.
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        mFrameCodec = frameCodec;
+    }
+
+    /**
+     * Configure the per-connection write queue. Takes effect for
+     * connections opened afterwards.
+     *
+     * @param capacity Messages that may wait for the writer thread
+     * @param policy   What write() does when the queue is full
+     */
+    public synchronized void setWriteQueue(int capacity, WriteQueue.BackpressurePolicy policy) {
+        mWriteQueueCapacity = capacity;
+        mBackpressurePolicy = policy;
+    }
+
+    /**
+     * Limit how long a connect may take, DNS lookup included. Takes effect
+     * for connects started afterwards.
+     */
+    public synchronized void setConnectTimeout(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive");
+        }
+        mConnectTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Reconnect automatically when a connection made with
+     * {@link #connect(String, int)} fails or is lost, instead of falling
+     * back to listening mode.
+     *
+     * @param policy The backoff between attempts, or null to disable
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Detect dead peers on quiet connections. A connection that has written
+     * nothing for the heartbeat interval sends an empty frame, and one that
+     * has read nothing, not even a heartbeat, for the idle timeout is
+     * treated as lost. Empty messages are therefore never delivered to the
+     * listeners. Both peers should enable heartbeats if either uses an idle
+     * timeout. Takes effect for connections opened afterwards.
+     *
+     * @param heartbeatIntervalMillis 0 to send no heartbeats
+     * @param idleTimeoutMillis       0 to never time out
+     */
+    public synchronized void setKeepAlive(long heartbeatIntervalMillis, long idleTimeoutMillis) {
+        if (heartbeatIntervalMillis < 0 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("intervals must not be negative");
+        }
+        mHeartbeatIntervalMillis = heartbeatIntervalMillis;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Encrypt connections with TLS, or send plaintext with null. Both peers
+     * must agree. Keep the same config over reconnects so that they resume
+     * the session instead of running a full handshake. Takes effect for
+     * connections opened afterwards. A connection is only reported once its
+     * handshake succeeded.
+     */
+    public synchronized void setTls(TlsConfig config) {
+        mTlsConfig = config;
+    }
+
+    /**
+     * Deflate messages above the threshold of the config, or send them as
+     * they are with null. A connection only flags its messages once the
+     * peer sent a hello with the same dictionary, see
+     * {@link DeflateCompression}; to any other peer they go as they are.
+     * The frame codec must allow any byte in a payload, as
+     * {@link VarintFrameCodec} does. Each connection keeps
+     * its own Deflater and Inflater and reports the ratio and the time
+     * spent in its {@link MetricsSnapshot#getCompression()}. Takes effect
+     * for connections opened afterwards.
+     */
+    public synchronized void setCompression(DeflateCompression compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Update UI title according to the current state of the chat connection.
+     * Called without holding the service lock.
+     */
+    private void onStateChanged(int from, int to) {
+        SocketLog.d(TAG, "onStateChanged() {} -> {}", from, to);
+
+        // Give the new state to the listener so the UI Activity can update
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onStateChanged(to);
+        }
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    @Override
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Start the chat service. Specifically start AcceptThread to begin a
+     * session in listening (server) mode. Called by the Activity onResume()
+     */
+    @Override
+    public void start() {
+        SocketLog.d(TAG, "start");
+        int state;
+        boolean listening;
+        synchronized (this) {
+            // Cancel any thread attempting to make a connection
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+            cancelReconnect();
+            mConnectIp = null;
+
+            // Cancel any thread currently running a connection
+            state = mState.get();
+            cancelConnections();
+
+            // Start the thread to listen on a BluetoothServerSocket
+            listening = mAcceptThread != null && mAcceptThread.isListening();
+            if (mAcceptThread == null) {
+                mAcceptThread = new AcceptThread();
+                mAcceptThread.start();
+            }
+        }
+        // A new AcceptThread reports LISTEN itself. A running one does not,
+        // and the cancelled connections never call connectionLost().
+        if (listening && state != STATE_LISTEN) {
+            mState.compareAndSet(state, STATE_LISTEN);
+        }
+    }
+
+    @Override
+    public void connect(String ip, int port) {
+        connectAsync(ip, port);
+    }
+
+    /**
+     * Connect to a device without blocking. If the host name has several
+     * addresses they are tried in parallel, see {@link Connector}.
+     *
+     * @param host A host name or a literal IPv4 or IPv6 address
+     * @return Completes with the id of the connection, or fails once the
+     * connect timed out and reconnecting (if enabled) gave up. Cancelling
+     * it stops the attempt.
+     */
+    public ConnectFuture connectAsync(String host, int port) {
+        SocketLog.d(TAG, "connect to: {}:{}", host, port);
+        ConnectFuture future = new ConnectFuture(this::cancelConnect);
+
+        synchronized (this) {
+            // Cancel any thread attempting to make a connection
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+            cancelReconnect();
+
+            // Cancel any thread currently running a connection
+            cancelConnections();
+
+            // Start the thread to connect with the given device
+            mConnectIp = host;
+            mConnectPort = port;
+            mReconnectAttempt = 0;
+            mConnectThread = new ConnectThread(host, port, future);
+            mConnectThread.start();
+        }
+        // Update UI title
+        mState.moveTo(STATE_CONNECTING);
+        return future;
+    }
+
+    /**
+     * Stop the connect that belongs to a cancelled future.
+     */
+    private void cancelConnect(ConnectFuture future) {
+        synchronized (this) {
+            boolean connecting = mConnectThread != null && mConnectThread.mmFuture == future;
+            boolean waiting = mReconnectThread != null && mReconnectThread.mmFuture == future;
+            if (!connecting && !waiting) {
+                // Already connected or superseded
+                return;
+            }
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+            cancelReconnect();
+            mConnectIp = null;
+        }
+        // Update UI title
+        mState.compareAndSet(STATE_CONNECTING, STATE_NONE);
+    }
+
+    /**
+     * @param tls        The TLS layer of the socket after its handshake, or
+     *                   null for plaintext
+     * @param acceptedBy The AcceptThread of an incoming connection, null
+     *                   for an outgoing one
+     * @return the id of the new connection, or -1 if the service was
+     * stopped meanwhile or no longer takes connections from that
+     * AcceptThread; the socket is closed then
+     */
+    private int connected(Socket socket, TlsConnection tls, AcceptThread acceptedBy) {
+        SocketLog.d(TAG, "connected");
+        boolean outgoing = acceptedBy == null;
+
+        ConnectedThread connectedThread;
+        synchronized (this) {
+            if (!outgoing && mAcceptThread != acceptedBy) {
+                // Another client was connected first, or the service was
+                // restarted or stopped while this one did its handshake
+                closeQuietly(socket);
+                return -1;
+            }
+
+            // Cancel the thread that completed the connection
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+
+            if (!mMultiClient) {
+                // Cancel any thread currently running a connection
+                cancelConnections();
+
+                // Cancel the accept thread because we only want to connect to one device
+                if (mAcceptThread != null) {
+                    mAcceptThread.cancel();
+                    mAcceptThread = null;
+                }
+            }
+
+            if (outgoing) {
+                mReconnectAttempt = 0;
+            }
+
+            // Start the thread to manage the connection and perform transmissions
+            int id = mNextConnectionId.incrementAndGet();
+            connectedThread = new ConnectedThread(id, socket, tls, outgoing);
+            mConnections.put(id, connectedThread);
+        }
+
+        // Update UI title
+        if (!mState.moveTo(STATE_CONNECTED)) {
+            // stop() won the race, drop the new connection
+            mConnections.remove(connectedThread.mmId);
+            connectedThread.cancel();
+            // Its threads never start to end them
+            connectedThread.closeMetrics();
+            connectedThread.endCompression();
+            return -1;
+        }
+        connectedThread.start();
+
+        // Send the name of the connected device back to the UI Activity
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onDeviceConnected(connectedThread.mmRemoteIp);
+        }
+        return connectedThread.mmId;
+    }
+
+    /**
+     * Stop all threads
+     */
+    @Override
+    public void stop() {
+        SocketLog.d(TAG, "stop");
+
+        synchronized (this) {
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+            cancelReconnect();
+            mConnectIp = null;
+
+            cancelConnections();
+
+            if (mAcceptThread != null) {
+                mAcceptThread.cancel();
+                mAcceptThread = null;
+            }
+        }
+
+        // Update UI title
+        mState.moveTo(STATE_NONE);
+    }
+
+    private void cancelReconnect() {
+        if (mReconnectThread != null) {
+            mReconnectThread.cancel();
+            mReconnectThread = null;
+        }
+    }
+
+    /**
+     * Schedule the next attempt to reach the address given to connect().
+     *
+     * @return false if this is not a client, reconnecting is disabled or
+     * the policy gave up
+     */
+    private synchronized boolean scheduleReconnect(ConnectFuture future) {
+        if (mConnectIp == null || mReconnectPolicy == null) {
+            return false;
+        }
+        int maxAttempts = mReconnectPolicy.getMaxAttempts();
+        if (maxAttempts > 0 && mReconnectAttempt >= maxAttempts) {
+            SocketLog.w(TAG, "giving up after {} reconnect attempts", mReconnectAttempt);
+            return false;
+        }
+        long delay = mReconnectPolicy.getDelayMillis(mReconnectAttempt++, mRandom);
+        mMetrics.recordReconnect();
+        SocketLog.d(TAG, "reconnect attempt {} in {} ms", mReconnectAttempt, delay);
+        cancelReconnect();
+        if (future == null) {
+            future = new ConnectFuture(this::cancelConnect);
+        }
+        mReconnectThread = new ReconnectThread(mConnectIp, mConnectPort, delay, future);
+        mReconnectThread.start();
+        return true;
+    }
+
+    private void cancelConnections() {
+        for (ConnectedThread connectedThread : mConnections.values()) {
+            connectedThread.cancel();
+        }
+        mConnections.clear();
+    }
+
+    /**
+     * Return the ids of all currently open connections.
+     */
+    public Set<Integer> getConnectionIds() {
+        return Collections.unmodifiableSet(mConnections.keySet());
+    }
+
+    /**
+     * Return the remote address of a connection, or null if it is closed.
+     */
+    public String getRemoteAddress(int connectionId) {
+        ConnectedThread r = mConnections.get(connectionId);
+        return r != null ? r.mmRemoteIp : null;
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        List<MetricsSnapshot> connections = new ArrayList<>();
+        // Not while a closing connection moves into the totals
+        synchronized (mMetrics) {
+            for (ConnectedThread r : mMeasured) {
+                connections.add(r.mmMetrics.snapshot(String.valueOf(r.mmId), r.mmRemoteIp, r.mmWriteQueue.size()));
+            }
+            return mMetrics.snapshot(TAG, 0, connections);
+        }
+    }
+
+    /**
+     * Write to the ConnectedThread in an unsynchronized manner
+     *
+     * @param out The bytes to write
+     * @param ip  The peer to write to, or null to write to every connection
+     * @see ConnectedThread#write(byte[])
+     */
+    @Override
+    public void write(byte[] out, String ip) {
+        if (mState.get() != STATE_CONNECTED) return;
+        // The connection map is concurrent, so no lock is needed
+        for (ConnectedThread r : mConnections.values()) {
+            if (ip == null || ip.equals(r.mmRemoteIp)) {
+                r.write(out);
+            }
+        }
+    }
+
+    /**
+     * Write to a single connection.
+     *
+     * @param out          The bytes to write
+     * @param connectionId The id of the connection
+     * @return false if there is no such connection or its write queue
+     * rejected the message
+     */
+    public boolean write(byte[] out, int connectionId) {
+        ConnectedThread r = mConnections.get(connectionId);
+        return r != null && r.write(out);
+    }
+
+    /**
+     * Write to every connection.
+     *
+     * @param out The bytes to write
+     */
+    @Override
+    public void multiWrite(byte[] out) {
+        write(out, null);
+    }
+
+    private void notifyError(String message) {
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onError(message);
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed(ConnectFuture future, IOException failure) {
+        mMetrics.recordConnectFailure();
+        if (scheduleReconnect(future)) {
+            // Still connecting, the UI only hears about the final failure
+            mState.moveTo(STATE_CONNECTING);
+            return;
+        }
+        future.fail(failure);
+
+        // Send a failure message back to the Activity
+        notifyError("Unable to connect device");
+
+        // Update UI title
+        mState.moveTo(STATE_NONE);
+
+        // Start the service over to restart listening mode
+        TcpService.this.start();
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the UI Activity.
+     */
+    private void connectionLost(ConnectedThread connectedThread) {
+        boolean lastConnection;
+        boolean listening;
+        synchronized (this) {
+            if (mConnections.remove(connectedThread.mmId) == null) {
+                // Already cancelled by start(), connect() or stop()
+                return;
+            }
+            lastConnection = mConnections.isEmpty();
+            listening = mMultiClient && mAcceptThread != null;
+        }
+        if (listening && !connectedThread.mmOutgoing) {
+            // Other clients are still served and the listener keeps running
+            if (lastConnection) {
+                mState.compareAndSet(STATE_CONNECTED, STATE_LISTEN);
+            }
+            return;
+        }
+
+        // Send a failure message back to the Activity
+        notifyError("Device connection was lost");
+
+        if (connectedThread.mmOutgoing && scheduleReconnect(null)) {
+            mState.moveTo(STATE_CONNECTING);
+            return;
+        }
+
+        // Update UI title
+        mState.moveTo(STATE_NONE);
+
+        // Start the service over to restart listening mode
+        TcpService.this.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            SocketLog.e(TAG, "close() of socket failed", e);
+        }
+    }
+
+    /**
+     * Start a loop of this service in its {@link ThreadMode}.
+     */
+    private Thread startThread(Runnable runnable, String name) {
+        Thread thread = mThreadMode.newThread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * This thread runs while listening for incoming connections. It behaves
+     * like a server-side client. It runs until a connection is accepted
+     * (or until cancelled).
+     */
+    private class AcceptThread implements Runnable {
+        // The local server socket
+        private volatile ServerSocket mmServerSocket;
+        private Socket mmSocket;
+        private final TlsConfig mmTlsConfig;
+
+        public AcceptThread() {
+            mmTlsConfig = mTlsConfig;
+        }
+
+        public void start() {
+            startThread(this, "AcceptThread");
+        }
+
+        @Override
+        public void run() {
+            SocketLog.d(TAG, "BEGIN mAcceptThread{}", this);
+
+            SocketLog.d(TAG, "server client start.");
+
+            try {
+                mmServerSocket = new ServerSocket(PORT);
+            } catch (IOException e) {
+                SocketLog.e(TAG, "AcceptThread failed", e);
+            }
+            if (mmServerSocket != null) {
+                mState.moveTo(STATE_LISTEN);
+            }
+            // Listen to the server socket if we're not connected
+            while (mmServerSocket != null && (mMultiClient || mState.get() != STATE_CONNECTED)) {
+                try {
+                    mmSocket = mmServerSocket.accept();
+                    SocketLog.d(TAG, "server client run.");
+                    if (SocketLog.isLoggable(SocketLog.DEBUG)) {
+                        SocketLog.d(TAG, "A client connected. IP:{}, Port: {}",
+                                mmSocket.getInetAddress().getHostAddress(), mmSocket.getLocalPort());
+                    }
+                    SocketLog.d(TAG, "\"server: receiving.............\"");
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "accept() failed", e);
+                    break;
+                }
+                // If a connection was accepted
+                if (mmSocket != null && mmSocket.isConnected()) {
+                    switch (mState.get()) {
+                        case STATE_LISTEN:
+                        case STATE_CONNECTING:
+                            // Situation normal. Start the connected thread.
+                            serve(mmSocket);
+                            break;
+                        case STATE_CONNECTED:
+                            if (mMultiClient) {
+                                // Serve this client alongside the others.
+                                serve(mmSocket);
+                            } else {
+                                // Already connected. Terminate new socket.
+                                closeUnwanted(mmSocket);
+                            }
+                            break;
+                        case STATE_NONE:
+                            // Not ready. Terminate new socket.
+                            closeUnwanted(mmSocket);
+                            break;
+                    }
+                }
+            }
+            SocketLog.i(TAG, "END AcceptThread");
+        }
+
+        /**
+         * Start the connected thread of an accepted socket. With TLS the
+         * handshake runs first on a thread of its own, so a slow client
+         * does not hold up the others, and only a client that completed it
+         * counts as connected. A failed handshake closes just its socket.
+         */
+        private void serve(final Socket socket) {
+            if (mmTlsConfig == null) {
+                connected(socket, null, this);
+                return;
+            }
+            startThread(() -> {
+                try {
+                    TlsConnection tls = new TlsConnection(socket, mmTlsConfig.createServerEngine(),
+                            mmTlsConfig.getHandshakeTimeoutMillis());
+                    tls.handshake();
+                    connected(socket, tls, this);
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "TLS handshake failed", e);
+                    closeUnwanted(socket);
+                }
+            }, "TlsHandshake");
+        }
+
+        private void closeUnwanted(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                SocketLog.e(TAG, "Could not close unwanted socket", e);
+            }
+        }
+
+        boolean isListening() {
+            ServerSocket serverSocket = mmServerSocket;
+            return serverSocket != null && !serverSocket.isClosed();
+        }
+
+        public void cancel() {
+            SocketLog.d(TAG, "AcceptThread cancel: {}", Thread.currentThread());
+            try {
+                if (mmServerSocket != null) {
+                    mmServerSocket.close();
+                }
+            } catch (IOException e) {
+                SocketLog.e(TAG, "AcceptThread close() of server failed", e);
+            }
+        }
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread implements Runnable {
+        private final String mmHost;
+        private final int mmPort;
+        private final Connector mmConnector;
+        private final ConnectFuture mmFuture;
+        private final TlsConfig mmTlsConfig;
+        private volatile Socket mmSocket;
+
+        public ConnectThread(String host, int port, ConnectFuture future) {
+            mmHost = host;
+            mmPort = port;
+            mmConnector = new Connector(host, port, mConnectTimeoutMillis, mThreadMode);
+            mmFuture = future;
+            mmTlsConfig = mTlsConfig;
+        }
+
+        public void start() {
+            startThread(this, "ConnectThread");
+        }
+
+        @Override
+        public void run() {
+            SocketLog.i(TAG, "BEGIN mConnectThread");
+
+            IOException failure = null;
+            TlsConnection tls = null;
+            try {
+                mmSocket = mmConnector.connect();
+                if (mmTlsConfig != null) {
+                    // Cached under host and port, so a reconnect resumes
+                    tls = new TlsConnection(mmSocket, mmTlsConfig.createClientEngine(mmHost, mmPort),
+                            mmTlsConfig.getHandshakeTimeoutMillis());
+                    tls.handshake();
+                }
+            } catch (IOException e) {
+                failure = e;
+                closeSocket();
+            }
+            // Reset the SendThread because we're done
+            synchronized (TcpService.this) {
+                if (mConnectThread != this) {
+                    // Cancelled by start(), connect() or stop() meanwhile
+                    cancel();
+                    return;
+                }
+                mConnectThread = null;
+            }
+
+            if (failure != null) {
+                SocketLog.e(TAG, "SendThread create() failed", failure);
+                connectionFailed(mmFuture, failure);
+                return;
+            }
+
+            // Start the connected thread
+            int id = connected(mmSocket, tls, null);
+            if (id < 0) {
+                mmFuture.fail(new IOException("Service stopped"));
+            } else {
+                mmFuture.complete(id);
+            }
+        }
+
+        public void cancel() {
+            mmConnector.cancel();
+            closeSocket();
+            mmFuture.abort();
+        }
+
+        private void closeSocket() {
+            Socket socket = mmSocket;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (Exception e) {
+                    SocketLog.e(TAG, "close() of connect socket failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * This thread waits out the backoff delay and then makes the next
+     * attempt to reach the address of the last connect().
+     */
+    private class ReconnectThread implements Runnable {
+        private final String mmIp;
+        private final int mmPort;
+        private final long mmDelayMillis;
+        private final ConnectFuture mmFuture;
+        private volatile Thread mmThread;
+
+        public ReconnectThread(String ip, int port, long delayMillis, ConnectFuture future) {
+            mmIp = ip;
+            mmPort = port;
+            mmDelayMillis = delayMillis;
+            mmFuture = future;
+        }
+
+        public void start() {
+            mmThread = startThread(this, "ReconnectThread");
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(mmDelayMillis);
+            } catch (InterruptedException e) {
+                // cancel()
+                return;
+            }
+            synchronized (TcpService.this) {
+                if (mReconnectThread != this) {
+                    return;
+                }
+                mReconnectThread = null;
+                if (mConnectThread != null) {
+                    mConnectThread.cancel();
+                }
+                mConnectThread = new ConnectThread(mmIp, mmPort, mmFuture);
+                mConnectThread.start();
+            }
+        }
+
+        public void cancel() {
+            Thread thread = mmThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            mmFuture.abort();
+        }
+    }
+
+    /**
+     * This thread runs during a connection with a remote device.
+     * It handles all incoming and outgoing transmissions.
+     */
+    private class ConnectedThread implements Runnable, FrameCodec.FrameListener {
+        private final int mmId;
+        private final String mmRemoteIp;
+        private final Socket mmSocket;
+        private final TlsConnection mmTls;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        private final FrameCodec mmFrameCodec;
+        private final FrameDecoder mmDecoder;
+        private final WriteQueue mmWriteQueue;
+        private final WriterThread mmWriter;
+        private final TransportMetrics mmMetrics;
+        // Null without compression; used by the writer and the reader
+        private final DeflateCompression mmCompression;
+        private final DeflateCompression.Compressor mmCompressor;
+        private final DeflateCompression.Decompressor mmDecompressor;
+        // Set by the reader on a matching hello; the writer then sends the
+        // accept and flags every message behind it
+        private volatile boolean mmPeerInflates;
+        // Set by the reader on the accept of the peer
+        private boolean mmInflating;
+        // A message that could not be decompressed, thrown after decode()
+        private IOException mmDecodeFailure;
+        private final boolean mmOutgoing;
+        private final long mmHeartbeatIntervalNanos;
+        private final long mmIdleTimeoutNanos;
+        private volatile long mmLastReadNanos;
+        private volatile long mmLastWriteNanos;
+
+        /**
+         * @param tls The TLS layer of the socket after its handshake, or
+         *            null for plaintext
+         */
+        public ConnectedThread(int id, Socket socket, TlsConnection tls, boolean outgoing) {
+            SocketLog.d(TAG, "create ConnectedThread {}: {}", id, Thread.currentThread());
+            mmId = id;
+            mmRemoteIp = socket.getInetAddress().getHostAddress();
+            mmSocket = socket;
+            mmTls = tls;
+            mmOutgoing = outgoing;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            if (tls != null) {
+                tmpIn = tls.getInputStream();
+                tmpOut = tls.getOutputStream();
+            } else {
+                try {
+                    tmpIn = socket.getInputStream();
+                    tmpOut = socket.getOutputStream();
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "temp sockets not created", e);
+                }
+            }
+
+            // Wake the blocked read up often enough to send heartbeats and
+            // to notice an idle peer
+            long tick = mHeartbeatIntervalMillis;
+            if (tick == 0 || (mIdleTimeoutMillis > 0 && mIdleTimeoutMillis < tick)) {
+                tick = mIdleTimeoutMillis;
+            }
+            if (tick > 0) {
+                try {
+                    socket.setSoTimeout((int) Math.min(tick, Integer.MAX_VALUE));
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "setSoTimeout() failed", e);
+                }
+            }
+            mmHeartbeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(mHeartbeatIntervalMillis);
+            mmIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMillis);
+            mmLastReadNanos = System.nanoTime();
+            mmLastWriteNanos = mmLastReadNanos;
+
+            mmInStream = tmpIn;
+            mmOutStream = tmpOut;
+            mmFrameCodec = mFrameCodec;
+            mmDecoder = mmFrameCodec.newDecoder();
+            mmCompression = mCompression;
+            mmCompressor = mmCompression != null ? mmCompression.newCompressor() : null;
+            mmDecompressor = mmCompression != null ? mmCompression.newDecompressor() : null;
+            mmMetrics = mMetrics.openConnection();
+            mmWriteQueue = new WriteQueue(mWriteQueueCapacity, mBackpressurePolicy, mmMetrics);
+            mmWriter = new WriterThread();
+            synchronized (mMetrics) {
+                mMeasured.add(this);
+            }
+        }
+
+        public void start() {
+            startThread(this, "ConnectedThread-" + mmId);
+        }
+
+        @Override
+        public void run() {
+            SocketLog.i(TAG, "BEGIN mConnectedThread " + mmId + ": " + Thread.currentThread());
+            mmWriter.start();
+
+            // Keep listening to the InputStream until cancel() closes the socket
+            while (!mmSocket.isClosed()) {
+                try {
+                    // Block until the peer sends something, then hand out whole frames
+                    int bytes;
+                    try {
+                        bytes = mmDecoder.readFrom(mmInStream);
+                    } catch (SocketTimeoutException e) {
+                        keepAlive();
+                        continue;
+                    }
+                    if (bytes < 0) {
+                        throw new IOException("Connection closed by peer");
+                    }
+                    mmLastReadNanos = System.nanoTime();
+                    mmMetrics.recordBytesIn(bytes);
+                    mmDecoder.decode(this);
+                    if (mmDecodeFailure != null) {
+                        throw mmDecodeFailure;
+                    }
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "disconnected", e);
+                    // Release the socket and the writer, the peer sees the close
+                    cancel();
+                    break;
+                }
+            }
+            // Into the totals before the connection leaves the map
+            closeMetrics();
+            connectionLost(this);
+            if (mmDecompressor != null) {
+                mmDecompressor.end();
+            }
+        }
+
+        /**
+         * Called when a read timed out: give up on a peer that has been
+         * silent for too long, or tell it that we are still here.
+         */
+        private void keepAlive() throws IOException {
+            long now = System.nanoTime();
+            if (mmIdleTimeoutNanos > 0 && now - mmLastReadNanos >= mmIdleTimeoutNanos) {
+                throw new IOException("Nothing received for "
+                        + TimeUnit.NANOSECONDS.toMillis(mmIdleTimeoutNanos) + " ms");
+            }
+            if (mmHeartbeatIntervalNanos > 0 && now - mmLastWriteNanos >= mmHeartbeatIntervalNanos
+                    && mmWriteQueue.size() == 0) {
+                // Never blocks, the queue is empty
+                mmWriteQueue.offer(HEARTBEAT);
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] array, int offset, int length) {
+            if (length == 0 || mmDecodeFailure != null) {
+                // Heartbeat, or the connection is about to be dropped
+                return;
+            }
+            if (DeflateCompression.isControlFrame(array, offset, length)) {
+                negotiate(array, offset, length);
+                return;
+            }
+            SocketLog.d(TAG, "Connected thread received {} bytes", length);
+            ByteBuffer message;
+            if (mmInflating) {
+                long start = System.nanoTime();
+                try {
+                    message = mmDecompressor.decompress(array, offset, length);
+                } catch (IOException e) {
+                    // The peer does not speak the same compression
+                    mmDecodeFailure = e;
+                    return;
+                }
+                mmMetrics.recordDecompression(length, message.remaining(), System.nanoTime() - start);
+            } else {
+                message = mmDecoder.frameView(offset, length);
+            }
+            SocketLog.dumpReceived(TAG, mmRemoteIp, message);
+            BinaryMessageListener listener = mBinaryMessageListener;
+            if (listener != null) {
+                listener.onReceived(mmRemoteIp, message);
+            }
+            mmMetrics.recordMessageIn(System.nanoTime() - mmLastReadNanos);
+        }
+
+        /**
+         * Handle a compression control frame. Without compression this side
+         * sent no hello, so the peer never accepts and nothing is flagged.
+         */
+        private void negotiate(byte[] frame, int offset, int length) {
+            if (mmCompression == null) {
+                return;
+            }
+            if (mmCompression.acceptsHello(frame, offset, length)) {
+                mmPeerInflates = true;
+            } else if (DeflateCompression.isAccept(frame, offset, length)) {
+                SocketLog.d(TAG, "connection {} receives compressed messages", mmId);
+                mmInflating = true;
+            }
+        }
+
+        /**
+         * Queue a message for the writer thread of this connection.
+         *
+         * @param buffer The bytes to write
+         * @return false if the write queue rejected the message
+         */
+        public boolean write(byte[] buffer) {
+            SocketLog.dumpSent(TAG, mmRemoteIp, buffer);
+            if (!mmWriteQueue.offer(buffer)) {
+                SocketLog.w(TAG, "write queue of connection {} is full, message dropped", mmId);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * The only thread that writes to the socket of this connection. It
+         * takes every queued message at once and encodes them into one
+         * pooled buffer, so a burst of small messages leaves in a single
+         * send() and allocates nothing. The buffer goes back to the shared
+         * free list after each batch, not to the cache of this thread, so
+         * an idle connection holds none.
+         */
+        private class WriterThread implements Runnable {
+            private final List<byte[]> mmBatch = new ArrayList<>();
+            private final long[] mmOfferNanos = new long[MAX_WRITE_BATCH];
+            // Payload length of each message after compression
+            private final int[] mmWireLengths = new int[MAX_WRITE_BATCH];
+            private volatile Thread mmThread;
+            private ByteBuffer mmBuffer;
+            // Whether the accept was sent and messages are flagged
+            private boolean mmDeflating;
+
+            public void start() {
+                mmThread = startThread(this, "WriterThread-" + mmId);
+            }
+
+            public void interrupt() {
+                Thread thread = mmThread;
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (mmCompression != null) {
+                        // Before any message, so the peer may accept right away
+                        writeBatch(mmCompression.newHello());
+                        mmOutStream.flush();
+                    }
+                    while (!mmSocket.isClosed()) {
+                        mmWriteQueue.takeBatch(mmBatch, mmOfferNanos, MAX_WRITE_BATCH);
+                        writeBatch(null);
+                        mmOutStream.flush();
+                        mmLastWriteNanos = System.nanoTime();
+                        recordBatch();
+                        SocketLog.d(TAG, "write: {} messages", mmBatch.size());
+                        mmBatch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    // cancel()
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "Exception during write", e);
+                    // Closing the socket makes the reader report the lost connection
+                    ConnectedThread.this.cancel();
+                }
+                mmWriteQueue.clear();
+                if (mmCompressor != null) {
+                    mmCompressor.end();
+                }
+            }
+
+            /**
+             * @param control A control frame to send ahead of the batch, or null
+             */
+            private void writeBatch(byte[] control) throws IOException {
+                PooledBuffer pooled = BufferPool.sharedHeap().acquire(WRITE_BUFFER_SIZE);
+                mmBuffer = pooled.buffer();
+                try {
+                    if (control != null) {
+                        write(control);
+                    }
+                    if (!mmDeflating && mmPeerInflates) {
+                        write(DeflateCompression.newAccept());
+                        mmDeflating = true;
+                    }
+                    for (int i = 0; i < mmBatch.size(); i++) {
+                        mmWireLengths[i] = write(mmBatch.get(i));
+                    }
+                    drain();
+                } finally {
+                    mmBuffer = null;
+                    pooled.release(true);
+                }
+            }
+
+            private void recordBatch() {
+                for (int i = 0; i < mmBatch.size(); i++) {
+                    int length = mmWireLengths[i];
+                    mmMetrics.recordBytesOut(length + mmFrameCodec.overhead(length));
+                    if (mmBatch.get(i) != HEARTBEAT) {
+                        mmMetrics.recordMessageOut(mmLastWriteNanos - mmOfferNanos[i]);
+                    }
+                }
+            }
+
+            /**
+             * @return The length of the payload as framed
+             */
+            private int write(byte[] buffer) throws IOException {
+                byte[] payload = buffer;
+                int length = buffer.length;
+                if (mmDeflating && buffer != HEARTBEAT) {
+                    long start = System.nanoTime();
+                    length = mmCompressor.compress(buffer, 0, buffer.length);
+                    payload = mmCompressor.getOutput();
+                    mmMetrics.recordCompression(buffer.length, length, mmCompressor.isDeflated(),
+                            System.nanoTime() - start);
+                }
+                int frameLength = length + mmFrameCodec.overhead(length);
+                if (frameLength > mmBuffer.remaining()) {
+                    drain();
+                }
+                if (frameLength <= mmBuffer.remaining()) {
+                    mmFrameCodec.encode(payload, 0, length, mmBuffer);
+                    return length;
+                }
+                // Larger than the whole buffer, write the parts as they are
+                for (ByteBuffer part : mmFrameCodec.encode(ByteBuffer.wrap(payload, 0, length))) {
+                    mmOutStream.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+                }
+                return length;
+            }
+
+            private void drain() throws IOException {
+                if (mmBuffer.position() > 0) {
+                    mmOutStream.write(mmBuffer.array(), mmBuffer.arrayOffset(), mmBuffer.position());
+                    mmBuffer.clear();
+                }
+            }
+        }
+
+        /**
+         * Keep the traffic of this connection in the totals of the service.
+         */
+        void closeMetrics() {
+            synchronized (mMetrics) {
+                if (mMeasured.remove(this)) {
+                    mMetrics.closeConnection(mmMetrics);
+                }
+            }
+        }
+
+        /**
+         * Free the Deflater and Inflater of a connection whose threads
+         * never ran.
+         */
+        void endCompression() {
+            if (mmCompressor != null) {
+                mmCompressor.end();
+                mmDecompressor.end();
+            }
+        }
+
+        public void cancel() {
+            mmWriter.interrupt();
+            try {
+                if (mmTls != null) {
+                    // Sends close_notify unless a write is under way
+                    mmTls.close();
+                } else {
+                    mmSocket.close();
+                }
+            } catch (IOException e) {
+                SocketLog.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.lang.reflect.Method;
+
+/**
+ * How {@link TcpService} runs its blocking accept, connect, read and write
+ * loops.
+ */
+public enum ThreadMode {
+
+    /**
+     * One platform thread per loop. Each costs a full native stack, so this
+     * suits a phone with a handful of connections.
+     */
+    PLATFORM {
+        @Override
+        Thread newThread(Runnable runnable, String name) {
+            return new Thread(runnable, name);
+        }
+    },
+
+    /**
+     * One virtual thread per loop (Java 21+). A connection that is waiting
+     * for data only holds a small heap-allocated stack, so a server JVM can
+     * keep a very large number of mostly idle connections on blocking I/O.
+     * Not available on Android.
+     */
+    VIRTUAL {
+        @Override
+        public boolean isSupported() {
+            return VirtualThreads.OF_VIRTUAL != null;
+        }
+
+        @Override
+        Thread newThread(Runnable runnable, String name) {
+            try {
+                Object builder = VirtualThreads.OF_VIRTUAL.invoke(null);
+                builder = VirtualThreads.NAME.invoke(builder, name);
+                return (Thread) VirtualThreads.UNSTARTED.invoke(builder, runnable);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to create a virtual thread", e);
+            }
+        }
+    };
+
+    /**
+     * Return whether this mode can be used on the running VM.
+     */
+    public boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Create a thread in this mode. It still has to be started.
+     */
+    abstract Thread newThread(Runnable runnable, String name);
+
+    /**
+     * Thread.ofVirtual() and Thread.Builder, looked up by reflection so that
+     * the core still compiles for Java 8 and Android.
+     */
+    private static class VirtualThreads {
+        static final Method OF_VIRTUAL;
+        static final Method NAME;
+        static final Method UNSTARTED;
+
+        static {
+            Method ofVirtual = null;
+            Method name = null;
+            Method unstarted = null;
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+            } catch (Exception e) {
+                ofVirtual = null;
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            UNSTARTED = unstarted;
+        }
+    }
+}
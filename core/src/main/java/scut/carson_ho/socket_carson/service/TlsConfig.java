@@ -0,0 +1,167 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS settings of a {@link TcpService}. The SSLContext holds the session
+ * caches, so keep one config for the life of the service: a client that
+ * reconnects to the same host and port then resumes its session from a
+ * TLS 1.3 ticket (or a TLS 1.2 session id) and skips the certificate
+ * exchange and the key agreement of a full handshake. The setters return
+ * this so a config can be built in one expression.
+ */
+public class TlsConfig {
+
+    /** Used in this order where the platform supports them. */
+    public static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    private final SSLContext mContext;
+    private String[] mProtocols;
+    private int mHandshakeTimeoutMillis = 10000;
+    private boolean mVerifyHostname = true;
+    private boolean mNeedClientAuth;
+
+    /**
+     * @param context An initialized context, with key managers for the
+     *                server side and trust managers for the client side
+     */
+    public TlsConfig(SSLContext context) {
+        mContext = context;
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : DEFAULT_PROTOCOLS) {
+            if (supported.contains(protocol)) {
+                protocols.add(protocol);
+            }
+        }
+        mProtocols = protocols.toArray(new String[0]);
+    }
+
+    /**
+     * Build a config whose key and trusted certificates both come from one
+     * PKCS#12 store, e.g. a self-signed certificate shared by the peers of
+     * a test network.
+     */
+    public static TlsConfig fromPkcs12(InputStream in, char[] password) throws IOException {
+        try {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, password);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(store, password);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(store);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+            return new TlsConfig(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load the key store", e);
+        }
+    }
+
+    /**
+     * Protocols to offer, newest first. The default is the supported part
+     * of {@link #DEFAULT_PROTOCOLS}.
+     */
+    public TlsConfig setProtocols(String... protocols) {
+        if (protocols.length == 0) {
+            throw new IllegalArgumentException("protocols must not be empty");
+        }
+        mProtocols = protocols.clone();
+        return this;
+    }
+
+    /**
+     * Longest a handshake may take before the connection is given up.
+     */
+    public TlsConfig setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+        if (handshakeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("handshakeTimeoutMillis must be positive");
+        }
+        mHandshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Whether a client checks that the server certificate names the host
+     * it connected to. On by default.
+     */
+    public TlsConfig setVerifyHostname(boolean verifyHostname) {
+        mVerifyHostname = verifyHostname;
+        return this;
+    }
+
+    /**
+     * Whether a server requires clients to present a trusted certificate.
+     */
+    public TlsConfig setNeedClientAuth(boolean needClientAuth) {
+        mNeedClientAuth = needClientAuth;
+        return this;
+    }
+
+    /**
+     * How many sessions each side keeps for resumption and for how long.
+     *
+     * @param size           0 for no limit
+     * @param timeoutSeconds 0 for no limit
+     */
+    public TlsConfig setSessionCache(int size, int timeoutSeconds) {
+        mContext.getClientSessionContext().setSessionCacheSize(size);
+        mContext.getClientSessionContext().setSessionTimeout(timeoutSeconds);
+        mContext.getServerSessionContext().setSessionCacheSize(size);
+        mContext.getServerSessionContext().setSessionTimeout(timeoutSeconds);
+        return this;
+    }
+
+    public SSLContext getContext() {
+        return mContext;
+    }
+
+    public String[] getProtocols() {
+        return mProtocols.clone();
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return mHandshakeTimeoutMillis;
+    }
+
+    /**
+     * Create the engine of an outgoing connection. The host and port are
+     * the key its session is cached under.
+     */
+    public SSLEngine createClientEngine(String host, int port) {
+        SSLEngine engine = mContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(mProtocols);
+        if (mVerifyHostname) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Create the engine of an accepted connection.
+     */
+    public SSLEngine createServerEngine() {
+        SSLEngine engine = mContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(mProtocols);
+        parameters.setNeedClientAuth(mNeedClientAuth);
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+}
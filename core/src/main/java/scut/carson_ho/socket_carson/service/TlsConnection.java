@@ -0,0 +1,340 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a connected blocking socket, driven through an {@link SSLEngine}
+ * so the same engine code would serve a non-blocking channel. The streams
+ * may be used by one reading and one writing thread at the same time, as a
+ * {@link TcpService} connection does: records are decrypted under the read
+ * side and encrypted under a write lock, which the read side also takes
+ * when TLS needs to answer, e.g. a key update.
+ * <p>
+ * Call {@link #handshake()} before the streams. Data that the peer sends
+ * right behind its last handshake message is kept for the first read.
+ */
+public final class TlsConnection {
+
+    private static final String TAG = "TlsConnection";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Socket mSocket;
+    private final SSLEngine mEngine;
+    private final InputStream mRawIn;
+    private final OutputStream mRawOut;
+    private final int mHandshakeTimeoutMillis;
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+
+    // Received records, in fill mode; guarded by the reading thread
+    private ByteBuffer mNetIn;
+    // Decrypted data not read yet, in drain mode
+    private ByteBuffer mAppIn;
+    // One record on its way out, guarded by mWriteLock
+    private ByteBuffer mNetOut;
+
+    private final InputStream mIn = new TlsInputStream();
+    private final OutputStream mOut = new TlsOutputStream();
+    private boolean mResumed;
+
+    /**
+     * @param handshakeTimeoutMillis Longest {@link #handshake()} may block
+     */
+    public TlsConnection(Socket socket, SSLEngine engine, int handshakeTimeoutMillis) throws IOException {
+        mSocket = socket;
+        mEngine = engine;
+        mHandshakeTimeoutMillis = handshakeTimeoutMillis;
+        mRawIn = socket.getInputStream();
+        mRawOut = socket.getOutputStream();
+        SSLSession session = engine.getSession();
+        mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        mNetOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        mAppIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        mAppIn.flip();
+    }
+
+    /**
+     * Run the whole handshake, blocking for at most the timeout.
+     *
+     * @throws SSLException if the peer is not trusted or the handshake
+     *                      fails otherwise
+     */
+    public void handshake() throws IOException {
+        int soTimeout = mSocket.getSoTimeout();
+        mSocket.setSoTimeout(mHandshakeTimeoutMillis);
+        // A session offered for resumption already has its creation time
+        long now = System.currentTimeMillis();
+        try {
+            mEngine.beginHandshake();
+            SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                    && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_TASK:
+                        status = runTasks();
+                        break;
+                    case NEED_WRAP:
+                        mWriteLock.lock();
+                        try {
+                            status = wrap(EMPTY);
+                        } finally {
+                            mWriteLock.unlock();
+                        }
+                        break;
+                    default:
+                        // NEED_UNWRAP, and NEED_UNWRAP_AGAIN of Java 9+
+                        SSLEngineResult result = unwrap();
+                        if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("Connection closed during the TLS handshake");
+                        }
+                        status = result.getHandshakeStatus();
+                        break;
+                }
+            }
+        } finally {
+            mSocket.setSoTimeout(soTimeout);
+        }
+        mResumed = mEngine.getSession().getCreationTime() < now;
+        SocketLog.d(TAG, "handshake done: {}, resumed {}", mEngine.getSession().getProtocol(), mResumed);
+    }
+
+    public InputStream getInputStream() {
+        return mIn;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    public SSLSession getSession() {
+        return mEngine.getSession();
+    }
+
+    /**
+     * Whether the handshake resumed an earlier session instead of running
+     * a full one.
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * Send close_notify if no write is in progress, then close the socket.
+     * Safe to call from any thread.
+     */
+    public void close() throws IOException {
+        if (mWriteLock.tryLock()) {
+            try {
+                mEngine.closeOutbound();
+                while (!mEngine.isOutboundDone()) {
+                    wrap(EMPTY);
+                }
+            } catch (IOException e) {
+                // The peer sees the closed socket instead
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+        mSocket.close();
+    }
+
+    /**
+     * Decrypt the next records until there is data to read.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        while (!mAppIn.hasRemaining()) {
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return false;
+            }
+            // Post-handshake messages: tickets, key updates, close_notify
+            SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+            while (status == SSLEngineResult.HandshakeStatus.NEED_TASK
+                    || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    status = runTasks();
+                } else {
+                    mWriteLock.lock();
+                    try {
+                        status = wrap(EMPTY);
+                    } finally {
+                        mWriteLock.unlock();
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unwrap one record, reading from the socket as needed. A timeout of
+     * the socket leaves the buffers consistent for the next call.
+     *
+     * @return null if the socket reached the end of the stream
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            mNetIn.flip();
+            mAppIn.compact();
+            try {
+                result = mEngine.unwrap(mNetIn, mAppIn);
+            } finally {
+                mNetIn.compact();
+                mAppIn.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    int packetSize = mEngine.getSession().getPacketBufferSize();
+                    if (mNetIn.capacity() < packetSize) {
+                        mNetIn = grow(mNetIn, packetSize, false);
+                    }
+                    int n = mRawIn.read(mNetIn.array(), mNetIn.arrayOffset() + mNetIn.position(),
+                            mNetIn.remaining());
+                    if (n < 0) {
+                        return null;
+                    }
+                    mNetIn.position(mNetIn.position() + n);
+                    break;
+                case BUFFER_OVERFLOW:
+                    mAppIn = grow(mAppIn, mEngine.getSession().getApplicationBufferSize()
+                            + mAppIn.remaining(), true);
+                    break;
+                default:
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * Encrypt from {@code src} into one record and send it. Call with the
+     * write lock held.
+     */
+    private SSLEngineResult.HandshakeStatus wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            mNetOut.clear();
+            SSLEngineResult result = mEngine.wrap(src, mNetOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    if (result.bytesProduced() == 0 && src.hasRemaining()) {
+                        throw new SSLException("Connection closed");
+                    }
+                    // The close_notify, if this call produced it
+                    sendNetOut();
+                    return result.getHandshakeStatus();
+                default:
+                    sendNetOut();
+                    return result.getHandshakeStatus();
+            }
+        }
+    }
+
+    private void sendNetOut() throws IOException {
+        if (mNetOut.position() > 0) {
+            mRawOut.write(mNetOut.array(), mNetOut.arrayOffset(), mNetOut.position());
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus runTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return mEngine.getHandshakeStatus();
+    }
+
+    /**
+     * @param drain Whether the buffer is in drain mode, else fill mode
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity, boolean drain) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        if (drain) {
+            bigger.put(buffer).flip();
+        } else {
+            buffer.flip();
+            bigger.put(buffer);
+        }
+        return bigger;
+    }
+
+    private class TlsInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? mAppIn.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, mAppIn.remaining());
+            mAppIn.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return mAppIn.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsConnection.this.close();
+        }
+    }
+
+    private class TlsOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            mWriteLock.lock();
+            try {
+                while (src.hasRemaining()) {
+                    int remaining = src.remaining();
+                    if (wrap(src) == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                            && src.remaining() == remaining) {
+                        throw new SSLException("Renegotiation is not supported");
+                    }
+                }
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mRawOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsConnection.this.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package scut.carson_ho.socket_carson.service;
+
+/**
+ * Buffer sizes and threading of the UDP path. The setters return this so a
+ * config can be built in one expression.
+ */
+public class UdpReceiveConfig {
+
+    /** Largest payload of an IPv4 UDP datagram. */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private int mDatagramSize = 1024;
+    private int mReceiveBufferSize;
+    private int mSendBufferSize;
+    private int mReceiverThreads = 1;
+
+    /**
+     * Largest datagram that is delivered, at most {@link #MAX_DATAGRAM_SIZE}.
+     * Bigger datagrams are counted as truncated and dropped.
+     */
+    public UdpReceiveConfig setDatagramSize(int datagramSize) {
+        if (datagramSize <= 0 || datagramSize > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("datagramSize must be in 1.." + MAX_DATAGRAM_SIZE);
+        }
+        mDatagramSize = datagramSize;
+        return this;
+    }
+
+    /**
+     * Kernel receive queue (SO_RCVBUF) in bytes, 0 for the system default.
+     * Raise it when bursts arrive faster than the listener handles them.
+     */
+    public UdpReceiveConfig setReceiveBufferSize(int receiveBufferSize) {
+        mReceiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * Kernel send queue (SO_SNDBUF) in bytes, 0 for the system default.
+     */
+    public UdpReceiveConfig setSendBufferSize(int sendBufferSize) {
+        mSendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /**
+     * Number of selector threads. Channels are spread over them round
+     * robin, so more than one only helps with several bound channels.
+     */
+    public UdpReceiveConfig setReceiverThreads(int receiverThreads) {
+        if (receiverThreads <= 0) {
+            throw new IllegalArgumentException("receiverThreads must be positive");
+        }
+        mReceiverThreads = receiverThreads;
+        return this;
+    }
+
+    public int getDatagramSize() {
+        return mDatagramSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return mReceiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return mSendBufferSize;
+    }
+
+    public int getReceiverThreads() {
+        return mReceiverThreads;
+    }
+}
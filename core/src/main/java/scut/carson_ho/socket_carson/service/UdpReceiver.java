@@ -0,0 +1,270 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scut.carson_ho.socket_carson.service.metrics.TransportMetrics;
+
+/**
+ * Receives datagrams for any number of bound channels. Each receiver
+ * thread sleeps in {@link Selector#select()} until a datagram arrives, so an
+ * idle receiver costs no CPU, and every channel reads into its own direct
+ * buffer that is borrowed from the {@link BufferPool} for as long as the
+ * channel is open.
+ * <p>
+ * The buffer is one byte larger than the configured datagram size. A
+ * datagram that fills it completely was cut by the kernel, so it is counted
+ * as truncated and dropped instead of being delivered damaged.
+ */
+public class UdpReceiver {
+    // Debugging
+    private static final String TAG = "UdpReceiver";
+
+    private final SocketService.BinaryMessageListener mListener;
+    private final UdpReceiveConfig mConfig;
+    private final ReceiverThread[] mReceiverThreads;
+    private final AtomicInteger mNextThread = new AtomicInteger();
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mTruncated = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private volatile TransportMetrics mMetrics = new TransportMetrics();
+
+    /**
+     * State of one bound channel, kept as the selection key attachment.
+     */
+    private static class Receiver {
+        final DatagramChannel channel;
+        final PooledBuffer pooled;
+        final ByteBuffer buffer;
+        final int size;
+        // Read-only window on buffer handed to the listener
+        final ByteBuffer view;
+
+        Receiver(DatagramChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.pooled = BufferPool.sharedDirect().acquire(bufferSize);
+            this.buffer = pooled.buffer();
+            // A pooled buffer may be larger, truncation is detected at size
+            this.size = bufferSize;
+            this.view = buffer.asReadOnlyBuffer();
+        }
+    }
+
+    public UdpReceiver(SocketService.BinaryMessageListener listener) throws IOException {
+        this(listener, new UdpReceiveConfig());
+    }
+
+    public UdpReceiver(SocketService.BinaryMessageListener listener, UdpReceiveConfig config) throws IOException {
+        mListener = listener;
+        mConfig = config;
+        mReceiverThreads = new ReceiverThread[config.getReceiverThreads()];
+        try {
+            for (int i = 0; i < mReceiverThreads.length; i++) {
+                mReceiverThreads[i] = new ReceiverThread(i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Bind a channel on the wildcard address. It receives unicast as well as
+     * broadcast datagrams sent to that port.
+     *
+     * @param port The local port
+     */
+    public DatagramChannel addReceiver(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().setBroadcast(true);
+            if (mConfig.getReceiveBufferSize() > 0) {
+                channel.socket().setReceiveBufferSize(mConfig.getReceiveBufferSize());
+            }
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            register(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void register(DatagramChannel channel) throws IOException {
+        Receiver receiver = new Receiver(channel, mConfig.getDatagramSize() + 1);
+        int index = (mNextThread.getAndIncrement() & Integer.MAX_VALUE) % mReceiverThreads.length;
+        try {
+            mReceiverThreads[index].register(receiver);
+        } catch (IOException e) {
+            receiver.pooled.release();
+            throw e;
+        }
+    }
+
+    public void start() {
+        for (ReceiverThread thread : mReceiverThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the threads and close the selectors with every registered channel.
+     */
+    public void close() {
+        for (ReceiverThread thread : mReceiverThreads) {
+            if (thread != null) {
+                thread.cancel();
+            }
+        }
+    }
+
+    /**
+     * Record received bytes and datagrams into the given metrics instead
+     * of a private instance, e.g. to keep them over a restart.
+     */
+    public void setMetrics(TransportMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Datagrams delivered to the listener.
+     */
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /**
+     * Datagrams dropped because they were larger than the datagram size.
+     */
+    public long getTruncatedCount() {
+        return mTruncated.get();
+    }
+
+    /**
+     * Failed receive() calls.
+     */
+    public long getErrorCount() {
+        return mErrors.get();
+    }
+
+    private class ReceiverThread extends Thread {
+        private final Selector mmSelector;
+        private volatile boolean mmRunning = true;
+
+        ReceiverThread(int index) throws IOException {
+            mmSelector = Selector.open();
+            setName("UdpReceiver-" + index);
+        }
+
+        void register(Receiver receiver) throws IOException {
+            // register() blocks while the selector is in select(), so wake it up
+            synchronized (this) {
+                mmSelector.wakeup();
+                receiver.channel.register(mmSelector, SelectionKey.OP_READ, receiver);
+            }
+        }
+
+        @Override
+        public void run() {
+            SocketLog.i(TAG, "BEGIN " + getName());
+            try {
+                while (mmRunning) {
+                    mmSelector.select();
+                    // Let register() finish before selecting again
+                    synchronized (this) {
+                    }
+                    Iterator<SelectionKey> keys = mmSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            drain((Receiver) key.attachment());
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (mmRunning) {
+                    SocketLog.e(TAG, "select() failed", e);
+                }
+            } finally {
+                closeAll();
+            }
+            SocketLog.i(TAG, "END " + getName());
+        }
+
+        /**
+         * Read every datagram that is waiting on the channel.
+         */
+        private void drain(Receiver receiver) {
+            while (true) {
+                SocketAddress source;
+                receiver.buffer.clear();
+                receiver.buffer.limit(receiver.size);
+                try {
+                    source = receiver.channel.receive(receiver.buffer);
+                } catch (IOException e) {
+                    mErrors.incrementAndGet();
+                    SocketLog.e(TAG, "receive() failed", e);
+                    return;
+                }
+                if (source == null) {
+                    return;
+                }
+                if (!receiver.buffer.hasRemaining()) {
+                    mTruncated.incrementAndGet();
+                    SocketLog.w(TAG, "datagram from {} exceeds {} bytes, dropped", source, mConfig.getDatagramSize());
+                    continue;
+                }
+                long receivedNanos = System.nanoTime();
+                mReceived.incrementAndGet();
+                int bytes = receiver.buffer.position();
+                receiver.view.limit(bytes).position(0);
+                String peer = ((InetSocketAddress) source).getAddress().getHostAddress();
+                mListener.onReceived(peer, receiver.view);
+                TransportMetrics metrics = mMetrics;
+                metrics.recordBytesIn(bytes);
+                metrics.recordMessageIn(System.nanoTime() - receivedNanos);
+            }
+        }
+
+        private void closeAll() {
+            if (!mmSelector.isOpen()) {
+                return;
+            }
+            for (SelectionKey key : mmSelector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "close() of channel failed", e);
+                }
+                ((Receiver) key.attachment()).pooled.release();
+            }
+            try {
+                mmSelector.close();
+            } catch (IOException e) {
+                SocketLog.e(TAG, "close() of selector failed", e);
+            }
+        }
+
+        void cancel() {
+            mmRunning = false;
+            mmSelector.wakeup();
+            if (!isAlive()) {
+                // Never started, nobody else will close the selector
+                closeAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import scut.carson_ho.socket_carson.service.metrics.TransportMetrics;
+
+/**
+ * Sends datagrams from a single thread over one {@link DatagramChannel}.
+ * Callers only enqueue; the sender wakes up once, takes up to
+ * {@code maxBatchSize} pending datagrams (waiting at most
+ * {@code maxWaitMillis} for the batch to fill) and sends them back to back.
+ * Java has no sendmmsg(), so a batch is still one send() per datagram, but
+ * there is no task hand-off or thread spawn per message, and the sender
+ * takes the queue lock once per batch instead of once per datagram. Each
+ * offer() still takes it, and the lock of the list of free entries.
+ * <p>
+ * offer() copies the data into a pooled direct buffer, which the sender
+ * releases after the send, and the queue entries are recycled as well, so
+ * a busy queue allocates nothing per datagram.
+ * <p>
+ * Host names are looked up by offer(), so a slow DNS server holds up the
+ * caller and not the datagrams of everyone else. The results are kept for
+ * {@link #ADDRESS_TTL_MILLIS}, for at most {@link #ADDRESS_CACHE_SIZE}
+ * hosts.
+ */
+public class UdpSendQueue {
+    // Debugging
+    private static final String TAG = "UdpSendQueue";
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final int ADDRESS_CACHE_SIZE = 256;
+    public static final long ADDRESS_TTL_MILLIS = 60_000;
+
+    // Where a null host goes, as InetAddress.getByName(null) resolves it
+    private static final String LOOPBACK = InetAddress.getLoopbackAddress().getHostAddress();
+
+    // Batch size histogram buckets: 1, 2-3, 4-7, ... 2^n and above
+    private static final int HISTOGRAM_BUCKETS = 12;
+
+    private final BlockingQueue<Datagram> mQueue;
+    private final BlockingQueue<Datagram> mFreeDatagrams;
+    private final int mMaxBatchSize;
+    private final long mMaxWaitNanos;
+    private final int mPort;
+    // Least recently used first, guarded by itself
+    private final Map<String, CachedAddress> mAddressCache =
+            new LinkedHashMap<String, CachedAddress>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedAddress> eldest) {
+                    return size() > ADDRESS_CACHE_SIZE;
+                }
+            };
+    private final SenderThread mSenderThread;
+
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mDatagrams = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLongArray mBatchSizeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private volatile TransportMetrics mMetrics = new TransportMetrics();
+
+    private static class Datagram {
+        PooledBuffer data;
+        InetSocketAddress address;
+        long offerNanos;
+    }
+
+    private static class CachedAddress {
+        final InetSocketAddress address;
+        final long expiresNanos;
+
+        CachedAddress(InetSocketAddress address, long expiresNanos) {
+            this.address = address;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * @param port          The destination port of every datagram
+     * @param capacity      Datagrams that may wait before offers are dropped
+     * @param maxBatchSize  Datagrams sent per wake up of the sender
+     * @param maxWaitMillis How long the sender waits for a batch to fill,
+     *                      0 to send whatever is queued right away
+     */
+    public UdpSendQueue(int port, int capacity, int maxBatchSize, long maxWaitMillis) throws IOException {
+        this(port, capacity, maxBatchSize, maxWaitMillis, 0);
+    }
+
+    /**
+     * @param sendBufferSize SO_SNDBUF of the channel, 0 for the system default
+     */
+    public UdpSendQueue(int port, int capacity, int maxBatchSize, long maxWaitMillis,
+                        int sendBufferSize) throws IOException {
+        mPort = port;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mFreeDatagrams = new ArrayBlockingQueue<>(capacity);
+        mMaxBatchSize = maxBatchSize;
+        mMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        mSenderThread = new SenderThread(sendBufferSize);
+        mSenderThread.start();
+    }
+
+    public UdpSendQueue(int port) throws IOException {
+        this(port, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE, 0);
+    }
+
+    /**
+     * Queue a datagram. Never blocks, except to look up a host name that
+     * is not cached.
+     *
+     * @param host The destination, null for the loopback address
+     * @return false if the queue is full or the host unknown, and the
+     * datagram was dropped
+     */
+    public boolean offer(byte[] data, String host) {
+        return offer(data, 0, data.length, host);
+    }
+
+    /**
+     * Queue part of an array as a datagram. The bytes are copied, so the
+     * array may be reused as soon as this returns.
+     */
+    public boolean offer(byte[] data, int offset, int length, String host) {
+        InetSocketAddress address;
+        try {
+            address = resolve(host != null ? host : LOOPBACK);
+        } catch (UnknownHostException e) {
+            mErrors.incrementAndGet();
+            mMetrics.recordDropped();
+            SocketLog.w(TAG, "unknown host {}, datagram dropped", host);
+            return false;
+        }
+        Datagram datagram = mFreeDatagrams.poll();
+        if (datagram == null) {
+            datagram = new Datagram();
+        }
+        datagram.data = BufferPool.sharedDirect().acquire(length);
+        datagram.data.buffer().put(data, offset, length).flip();
+        datagram.address = address;
+        datagram.offerNanos = System.nanoTime();
+        if (!mQueue.offer(datagram)) {
+            mDropped.incrementAndGet();
+            mMetrics.recordDropped();
+            recycle(datagram);
+            return false;
+        }
+        return true;
+    }
+
+    private void recycle(Datagram datagram) {
+        datagram.data.release();
+        datagram.data = null;
+        datagram.address = null;
+        mFreeDatagrams.offer(datagram);
+    }
+
+    /**
+     * Set the interface, hop limit and loopback of datagrams sent to
+     * multicast groups. Needs {@link MulticastConfig#isSupported()}.
+     *
+     * @param networkInterface The outgoing interface, null to let the
+     *                         routing table decide
+     */
+    public void setMulticastOptions(NetworkInterface networkInterface, int timeToLive,
+                                    boolean loopback) throws IOException {
+        MulticastConfig.checkSupported();
+        DatagramChannel channel = mSenderThread.mmChannel;
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, loopback);
+    }
+
+    /**
+     * Record sent bytes, datagrams and drops into the given metrics instead
+     * of a private instance, e.g. to keep them over a restart.
+     */
+    public void setMetrics(TransportMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Stop the sender and close the channel. Queued datagrams are discarded.
+     */
+    public void close() {
+        mSenderThread.cancel();
+    }
+
+    public long getBatchCount() {
+        return mBatches.get();
+    }
+
+    public long getDatagramCount() {
+        return mDatagrams.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public long getErrorCount() {
+        return mErrors.get();
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Number of batches per size class. Bucket {@code i} counts batches of
+     * {@code 2^i} to {@code 2^(i+1) - 1} datagrams; the last one is open ended.
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = mBatchSizeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    private InetSocketAddress resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        CachedAddress cached;
+        synchronized (mAddressCache) {
+            cached = mAddressCache.get(host);
+        }
+        if (cached != null && cached.expiresNanos - now > 0) {
+            return cached.address;
+        }
+        // Not under the lock, a lookup may take seconds
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), mPort);
+        cached = new CachedAddress(address, now + TimeUnit.MILLISECONDS.toNanos(ADDRESS_TTL_MILLIS));
+        synchronized (mAddressCache) {
+            mAddressCache.put(host, cached);
+        }
+        return address;
+    }
+
+    private void recordBatch(int size) {
+        mBatches.incrementAndGet();
+        mDatagrams.addAndGet(size);
+        int bucket = Math.min(31 - Integer.numberOfLeadingZeros(size), HISTOGRAM_BUCKETS - 1);
+        mBatchSizeHistogram.incrementAndGet(bucket);
+    }
+
+    private class SenderThread extends Thread {
+        private final DatagramChannel mmChannel;
+        private final List<Datagram> mmBatch = new ArrayList<>();
+        private volatile boolean mmRunning = true;
+
+        SenderThread(int sendBufferSize) throws IOException {
+            mmChannel = DatagramChannel.open();
+            mmChannel.socket().setBroadcast(true);
+            if (sendBufferSize > 0) {
+                mmChannel.socket().setSendBufferSize(sendBufferSize);
+            }
+            setName("UdpSendQueue");
+        }
+
+        @Override
+        public void run() {
+            SocketLog.i(TAG, "BEGIN mSenderThread");
+            try {
+                while (mmRunning) {
+                    mmBatch.add(mQueue.take());
+                    fillBatch();
+                    for (int i = 0; i < mmBatch.size(); i++) {
+                        Datagram datagram = mmBatch.get(i);
+                        try {
+                            int bytes = mmChannel.send(datagram.data.buffer(), datagram.address);
+                            TransportMetrics metrics = mMetrics;
+                            metrics.recordBytesOut(bytes);
+                            metrics.recordMessageOut(System.nanoTime() - datagram.offerNanos);
+                        } catch (IOException | RuntimeException e) {
+                            // Only this datagram is lost, the sender goes on
+                            mErrors.incrementAndGet();
+                            SocketLog.e(TAG, "send to " + datagram.address + " failed", e);
+                        }
+                        recycle(datagram);
+                    }
+                    recordBatch(mmBatch.size());
+                    mmBatch.clear();
+                }
+            } catch (InterruptedException e) {
+                // cancel()
+            } finally {
+                // Give the buffers of the discarded datagrams back
+                mQueue.drainTo(mmBatch);
+                for (int i = 0; i < mmBatch.size(); i++) {
+                    recycle(mmBatch.get(i));
+                }
+                mmBatch.clear();
+                try {
+                    mmChannel.close();
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "close() of channel failed", e);
+                }
+            }
+            SocketLog.i(TAG, "END mSenderThread");
+        }
+
+        private void fillBatch() throws InterruptedException {
+            mQueue.drainTo(mmBatch, mMaxBatchSize - mmBatch.size());
+            if (mMaxWaitNanos <= 0) {
+                return;
+            }
+            long deadline = System.nanoTime() + mMaxWaitNanos;
+            while (mmBatch.size() < mMaxBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                Datagram datagram = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (datagram == null) {
+                    return;
+                }
+                mmBatch.add(datagram);
+                mQueue.drainTo(mmBatch, mMaxBatchSize - mmBatch.size());
+            }
+        }
+
+        void cancel() {
+            mmRunning = false;
+            interrupt();
+        }
+    }
+}
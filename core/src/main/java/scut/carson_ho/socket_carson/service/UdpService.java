@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package scut.carson_ho.socket_carson.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import scut.carson_ho.socket_carson.service.codec.DeflateCompression;
+import scut.carson_ho.socket_carson.service.metrics.MetricsSnapshot;
+import scut.carson_ho.socket_carson.service.metrics.ServiceMetrics;
+
+/**
+ * This class does all the work for setting up and managing Bluetooth
+ * connections with other devices. It has a thread that listens for
+ * incoming connections, a thread for connecting with a device, and a
+ * thread for performing data transmissions when connected.
+ * <p>
+ * Datagrams are received by a {@link UdpReceiver} and sent through a
+ * {@link UdpSendQueue}, each running on a single thread.
+ * <p>
+ * {@link #multiWrite(byte[])} sends to the multicast group of the
+ * {@link MulticastConfig}, and only receivers that joined that group with
+ * {@link #joinGroup(String)} get the datagram. Joined groups are kept over
+ * stop() and joined again on the next start().
+ * <p>
+ * With a {@link DeflateCompression} large datagrams are deflated, each on
+ * its own since any of them may be lost. Every thread that writes or
+ * receives gets a Deflater or Inflater of its own for each datagram.
+ */
+public class UdpService implements SocketService {
+    // Debugging
+    private static final String TAG = "UdpService";
+
+    // Member fields
+    private volatile ServiceListener mServiceListener;
+    private UdpReceiver mReceiver;
+    private UdpSendQueue mSendQueue;
+    private int mMaxBatchSize = UdpSendQueue.DEFAULT_MAX_BATCH_SIZE;
+    private long mMaxBatchWaitMillis;
+    private volatile UdpReceiveConfig mConfig = new UdpReceiveConfig();
+    private MulticastConfig mMulticastConfig = new MulticastConfig();
+    // Channel of the receiver on PORT, null when stopped
+    private DatagramChannel mChannel;
+    // Every requested group, with its key while the receiver runs
+    private final Map<Membership, MembershipKey> mMemberships = new LinkedHashMap<>();
+    private final ConnectionState mState = new ConnectionState(this::onStateChanged);
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private volatile BinaryMessageListener mBinaryMessageListener;
+    private DeflateCompression mCompression;
+    // Null without compression; replaced and closed under the lock
+    private volatile CodecPool<DeflateCompression.Compressor> mCompressors;
+    // Of the running receiver, null without compression or when stopped
+    private CodecPool<DeflateCompression.Decompressor> mDecompressors;
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session.
+     */
+    public UdpService() {
+    }
+
+    @Override
+    public void setServiceListener(ServiceListener serviceListener) {
+        mServiceListener = serviceListener;
+    }
+
+    @Override
+    public void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
+        setBinaryMessageListener(receiveMessageListener != null
+                ? new StringMessageAdapter(receiveMessageListener) : null);
+    }
+
+    @Override
+    public void setBinaryMessageListener(BinaryMessageListener binaryMessageListener) {
+        mBinaryMessageListener = binaryMessageListener;
+    }
+
+    /**
+     * Update UI title according to the current state of the chat connection.
+     * Called without holding the service lock.
+     */
+    private void onStateChanged(int from, int to) {
+        SocketLog.d(TAG, "onStateChanged() {} -> {}", from, to);
+
+        // Give the new state to the listener so the UI Activity can update
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onStateChanged(to);
+        }
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    @Override
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Start the chat service. Specifically start the receiver to begin
+     * listening for unicast and broadcast datagrams on {@link #PORT}, and
+     * for the multicast groups that were joined.
+     */
+    @Override
+    public void start() {
+        SocketLog.d(TAG, "start");
+
+        boolean started;
+        synchronized (this) {
+            if (mReceiver == null) {
+                UdpReceiver receiver = null;
+                CodecPool<DeflateCompression.Decompressor> decompressors =
+                        mCompression != null ? decompressorPool(mCompression) : null;
+                mDecompressors = decompressors;
+                try {
+                    receiver = new UdpReceiver((peer, message) -> {
+                        SocketLog.d(TAG, "{}: {} bytes", peer, message.remaining());
+                        if (!DeflateCompression.isFlaggedDatagram(message)) {
+                            // From a peer without compression
+                            deliver(peer, message);
+                        } else if (decompressors != null) {
+                            // The message lives in the decompressor until the listener returns
+                            DeflateCompression.Decompressor decompressor = decompressors.take();
+                            try {
+                                message = decompress(decompressor, peer, message);
+                                if (message != null) {
+                                    deliver(peer, message);
+                                }
+                            } finally {
+                                decompressors.give(decompressor);
+                            }
+                        } else if (DeflateCompression.datagramFlag(message) == DeflateCompression.RAW) {
+                            message.position(message.position() + DeflateCompression.DATAGRAM_HEADER_SIZE + 1);
+                            deliver(peer, message);
+                        } else {
+                            SocketLog.w(TAG, "deflated datagram from {} without compression, dropped", peer);
+                            mMetrics.transport().recordDropped();
+                        }
+                    }, mConfig);
+                    receiver.setMetrics(mMetrics.transport());
+                    mChannel = receiver.addReceiver(PORT);
+                    mReceiver = receiver;
+                    mReceiver.start();
+                    joinMemberships();
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "UdpReceiver create() failed", e);
+                    if (receiver != null) {
+                        receiver.close();
+                    }
+                    // No receiver thread ever used it
+                    mDecompressors = null;
+                    if (decompressors != null) {
+                        decompressors.close();
+                    }
+                }
+            }
+            started = mReceiver != null;
+        }
+
+        // Report a failure outside of the lock
+        if (!started) {
+            connectionFailed();
+            return;
+        }
+        // Update UI title
+        mState.moveTo(STATE_LISTEN);
+    }
+
+    @Override
+    public synchronized void connect(String ip, int port) {
+    }
+
+    /**
+     * Stop all threads
+     */
+    @Override
+    public void stop() {
+        SocketLog.d(TAG, "stop");
+
+        synchronized (this) {
+            if (mSendQueue != null) {
+                mSendQueue.close();
+                mSendQueue = null;
+            }
+            if (mCompressors != null) {
+                // Free the Deflaters, writes after stop() start a new set
+                mCompressors.close();
+                mCompressors = compressorPool(mCompression);
+            }
+            if (mDecompressors != null) {
+                // The ones in use are freed when their thread returns them
+                mDecompressors.close();
+                mDecompressors = null;
+            }
+            if (mReceiver != null) {
+                mReceiver.close();
+                mReceiver = null;
+                mChannel = null;
+                // Closing the channel dropped every membership
+                for (Map.Entry<Membership, MembershipKey> entry : mMemberships.entrySet()) {
+                    entry.setValue(null);
+                }
+            }
+        }
+
+        // Update UI title
+        mState.moveTo(STATE_NONE);
+    }
+
+    /**
+     * Configure how the send queue coalesces datagrams. Takes effect when
+     * the queue is next created, i.e. on the first write after stop().
+     *
+     * @param maxBatchSize  Datagrams sent per wake up of the sender thread
+     * @param maxWaitMillis How long the sender waits for a batch to fill
+     */
+    public synchronized void setSendBatching(int maxBatchSize, long maxWaitMillis) {
+        mMaxBatchSize = maxBatchSize;
+        mMaxBatchWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Set datagram and socket buffer sizes and the receiver thread count.
+     * Takes effect on the next start() and the first write after stop().
+     */
+    public synchronized void setReceiveConfig(UdpReceiveConfig config) {
+        mConfig = config;
+    }
+
+    /**
+     * Set the group multiWrite() sends to, the interface and the hop
+     * limit. Takes effect for groups joined afterwards and for the send
+     * queue on the first write after stop().
+     */
+    public synchronized void setMulticastConfig(MulticastConfig config) {
+        mMulticastConfig = config;
+    }
+
+    /**
+     * Deflate datagrams above the threshold of the config, or send them as
+     * they are with null. Every datagram then starts with a versioned
+     * header and a flag byte, see {@link DeflateCompression}. A receiver
+     * without compression strips them from the datagrams sent as they are
+     * and drops the deflated ones; one with compression takes datagrams
+     * without the header as they are. A datagram that would not fit
+     * {@link UdpReceiveConfig#getDatagramSize()} as it is gets deflated
+     * even below the threshold; the ratio and the time spent are in
+     * {@link MetricsSnapshot#getCompression()}. Takes effect for sending
+     * right away and for receiving on the next start().
+     */
+    public synchronized void setCompression(DeflateCompression compression) {
+        mCompression = compression;
+        CodecPool<DeflateCompression.Compressor> old = mCompressors;
+        mCompressors = compressorPool(compression);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Receive the datagrams any source sends to a multicast group.
+     *
+     * @param group An IPv4 224.0.0.0/4 or IPv6 ff00::/8 literal
+     * @throws IOException if the receiver is running and the join failed
+     * @throws UnsupportedOperationException below Android API level 24
+     * @see MulticastConfig#isSupported()
+     */
+    public void joinGroup(String group) throws IOException {
+        joinGroup(group, null);
+    }
+
+    /**
+     * Receive the datagrams one source sends to a multicast group (source
+     * specific multicast, RFC 4607; usually 232.0.0.0/8 or ff3x::/32). Join
+     * again with other sources to receive from each of them.
+     *
+     * @param source A unicast literal of the same family as the group
+     */
+    public synchronized void joinGroup(String group, String source) throws IOException {
+        MulticastConfig.checkSupported();
+        Membership membership = new Membership(group, source);
+        if (mMemberships.get(membership) != null) {
+            return;
+        }
+        MembershipKey key = null;
+        if (mChannel != null) {
+            // Throws before the group is recorded
+            key = join(membership);
+        }
+        mMemberships.put(membership, key);
+    }
+
+    public void leaveGroup(String group) {
+        leaveGroup(group, null);
+    }
+
+    /**
+     * Stop receiving a group joined with the same group and source.
+     */
+    public synchronized void leaveGroup(String group, String source) {
+        MembershipKey key = mMemberships.remove(new Membership(group, source));
+        if (key != null) {
+            key.drop();
+        }
+    }
+
+    private MembershipKey join(Membership membership) throws IOException {
+        SocketLog.d(TAG, "join {}", membership);
+        if (membership.source == null) {
+            return mChannel.join(membership.group, mMulticastConfig.resolveInterface(membership.group));
+        }
+        return mChannel.join(membership.group, mMulticastConfig.resolveInterface(membership.group),
+                membership.source);
+    }
+
+    /**
+     * Join the requested groups on a fresh receiver channel. A group that
+     * fails is reported and stays requested for the next start().
+     */
+    private void joinMemberships() {
+        for (Map.Entry<Membership, MembershipKey> entry : mMemberships.entrySet()) {
+            try {
+                entry.setValue(join(entry.getKey()));
+            } catch (IOException | IllegalStateException e) {
+                SocketLog.e(TAG, "join " + entry.getKey() + " failed", e);
+                notifyError("Unable to join " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Return the receiver with its received and truncated counters, or null
+     * when the service is not started.
+     */
+    public synchronized UdpReceiver getReceiver() {
+        return mReceiver;
+    }
+
+    /**
+     * Return the send queue with its batch counters, or null before the
+     * first write.
+     */
+    public synchronized UdpSendQueue getSendQueue() {
+        return mSendQueue;
+    }
+
+    private synchronized UdpSendQueue sendQueue() {
+        if (mSendQueue == null) {
+            try {
+                mSendQueue = new UdpSendQueue(PORT, UdpSendQueue.DEFAULT_CAPACITY,
+                        mMaxBatchSize, mMaxBatchWaitMillis, mConfig.getSendBufferSize());
+            } catch (IOException e) {
+                SocketLog.e(TAG, "SendQueue create() failed", e);
+                connectionFailed();
+                return null;
+            }
+            mSendQueue.setMetrics(mMetrics.transport());
+            if (MulticastConfig.isSupported()) {
+                try {
+                    mSendQueue.setMulticastOptions(mMulticastConfig.getInterface(),
+                            mMulticastConfig.getTimeToLive(), mMulticastConfig.isLoopback());
+                } catch (IOException e) {
+                    SocketLog.e(TAG, "setMulticastOptions() failed", e);
+                }
+            }
+        }
+        return mSendQueue;
+    }
+
+    /**
+     * Queue a datagram for the sender thread. Never blocks, except to look
+     * up a host name that is not cached.
+     *
+     * @param out The bytes to write
+     * @see UdpSendQueue#offer(byte[], String)
+     */
+    @Override
+    public void write(byte[] out, String ip) {
+        if (out == null || out.length == 0) {
+            return;
+        }
+        UdpSendQueue r = sendQueue();
+        if (r == null) {
+            return;
+        }
+        SocketLog.dumpSent(TAG, ip, out);
+        CodecPool<DeflateCompression.Compressor> compressors = mCompressors;
+        if (compressors == null) {
+            r.offer(out, ip);
+            return;
+        }
+        DeflateCompression.Compressor compressor = compressors.take();
+        try {
+            long start = System.nanoTime();
+            int length = compressor.compress(out, 0, out.length, mConfig.getDatagramSize());
+            mMetrics.transport().recordCompression(out.length, length, compressor.isDeflated(),
+                    System.nanoTime() - start);
+            // Copied, so the output may be reused right away
+            r.offer(compressor.getOutput(), 0, length, ip);
+        } finally {
+            compressors.give(compressor);
+        }
+    }
+
+    private void deliver(String peer, ByteBuffer message) {
+        SocketLog.dumpReceived(TAG, peer, message);
+        BinaryMessageListener listener = mBinaryMessageListener;
+        if (listener != null) {
+            listener.onReceived(peer, message);
+        }
+    }
+
+    /**
+     * @param datagram A flagged datagram
+     * @return The message, or null if the datagram was dropped
+     */
+    private ByteBuffer decompress(DeflateCompression.Decompressor decompressor, String peer,
+                                  ByteBuffer datagram) {
+        int length = datagram.remaining();
+        long start = System.nanoTime();
+        datagram.position(datagram.position() + DeflateCompression.DATAGRAM_HEADER_SIZE);
+        try {
+            ByteBuffer message = decompressor.decompress(datagram);
+            mMetrics.transport().recordDecompression(length, message.remaining(), System.nanoTime() - start);
+            return message;
+        } catch (IOException e) {
+            SocketLog.w(TAG, "datagram from {} could not be decompressed, dropped", peer, e);
+            mMetrics.transport().recordDropped();
+            return null;
+        }
+    }
+
+    /**
+     * Send to the multicast group of the {@link MulticastConfig}.
+     */
+    @Override
+    public void multiWrite(byte[] out) {
+        String group;
+        synchronized (this) {
+            group = mMulticastConfig.getGroup();
+        }
+        write(out, group);
+    }
+
+    /**
+     * Datagrams have no connections, so the snapshot only has totals.
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+        UdpSendQueue sendQueue = getSendQueue();
+        return mMetrics.snapshot(TAG, sendQueue != null ? sendQueue.getQueueDepth() : 0,
+                Collections.<MetricsSnapshot>emptyList());
+    }
+
+    private void notifyError(String message) {
+        ServiceListener listener = mServiceListener;
+        if (listener != null) {
+            listener.onError(message);
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed() {
+        mMetrics.recordConnectFailure();
+        // Send a failure message back to the Activity
+        notifyError("Unable to connect device");
+
+        // Update UI title
+        mState.moveTo(STATE_NONE);
+    }
+
+    private static CodecPool<DeflateCompression.Compressor> compressorPool(final DeflateCompression compression) {
+        if (compression == null) {
+            return null;
+        }
+        return new CodecPool<DeflateCompression.Compressor>() {
+            @Override
+            DeflateCompression.Compressor create() {
+                return compression.newDatagramCompressor();
+            }
+
+            @Override
+            void end(DeflateCompression.Compressor compressor) {
+                compressor.end();
+            }
+        };
+    }
+
+    private static CodecPool<DeflateCompression.Decompressor> decompressorPool(final DeflateCompression compression) {
+        return new CodecPool<DeflateCompression.Decompressor>() {
+            @Override
+            DeflateCompression.Decompressor create() {
+                return compression.newDecompressor();
+            }
+
+            @Override
+            void end(DeflateCompression.Decompressor decompressor) {
+                decompressor.end();
+            }
+        };
+    }
+
+    /**
+     * Deflaters or Inflaters for the threads that use them at the same
+     * time. A thread takes one for a datagram and gives it back, so there
+     * are only as many as threads ever overlapped, and none is locked.
+     * close() ends the idle ones at once and the others when they are
+     * given back.
+     */
+    private abstract static class CodecPool<T> {
+        private final ConcurrentLinkedQueue<T> mFree = new ConcurrentLinkedQueue<>();
+        private volatile boolean mClosed;
+
+        abstract T create();
+
+        abstract void end(T codec);
+
+        T take() {
+            T codec = mFree.poll();
+            return codec != null ? codec : create();
+        }
+
+        void give(T codec) {
+            mFree.offer(codec);
+            // Whoever removes it from the list after close() ends it
+            if (mClosed && mFree.remove(codec)) {
+                end(codec);
+            }
+        }
+
+        void close() {
+            mClosed = true;
+            T codec;
+            while ((codec = mFree.poll()) != null) {
+                end(codec);
+            }
+        }
+    }
+
+    /**
+     * A group, optionally limited to one source.
+     */
+    private static final class Membership {
+        final InetAddress group;
+        final InetAddress source;
+
+        Membership(String group, String source) {
+            this.group = MulticastConfig.parse(group);
+            MulticastConfig.checkGroup(this.group);
+            this.source = source != null ? MulticastConfig.parse(source) : null;
+            if (this.source != null && (this.source.isMulticastAddress()
+                    || this.source.getClass() != this.group.getClass())) {
+                throw new IllegalArgumentException("Source " + source
+                        + " must be a unicast address of the group's family");
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Membership)) {
+                return false;
+            }
+            Membership other = (Membership) o;
+            return group.equals(other.group)
+                    && (source == null ? other.source == null : source.equals(other.source));
+        }
+
+        @Override
+        public int hashCode() {
+            return group.hashCode() * 31 + (source != null ? source.hashCode() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return source != null ? source.getHostAddress() + " -> " + group.getHostAddress()
+                    : group.getHostAddress();
+        }
+    }
+}
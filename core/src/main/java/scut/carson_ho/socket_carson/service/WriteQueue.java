@@ -0,0 +1,184 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import scut.carson_ho.socket_carson.service.metrics.TransportMetrics;
+
+/**
+ * Bounded queue between the threads that call write() and the single
+ * writer thread of a connection. Keeping one writer per connection
+ * preserves the order of messages and stops concurrent writes from
+ * interleaving their bytes on the socket.
+ * <p>
+ * Every message keeps the time it was offered, so the writer can record
+ * how long it took to reach the socket.
+ */
+public class WriteQueue {
+
+    /**
+     * What {@link #offer(byte[])} does when the queue is full.
+     */
+    public enum BackpressurePolicy {
+        /** Wait until the writer has made room. */
+        BLOCK,
+        /** Discard the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Reject the new message immediately. */
+        FAIL_FAST
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Ring of messages and their offer times, guarded by mLock
+    private final byte[][] mMessages;
+    private final long[] mOfferNanos;
+    private int mHead;
+    private int mCount;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final BackpressurePolicy mPolicy;
+    private final TransportMetrics mMetrics;
+
+    public WriteQueue(int capacity, BackpressurePolicy policy) {
+        this(capacity, policy, new TransportMetrics());
+    }
+
+    /**
+     * @param metrics Counts the dropped messages
+     */
+    public WriteQueue(int capacity, BackpressurePolicy policy, TransportMetrics metrics) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mMessages = new byte[capacity][];
+        mOfferNanos = new long[capacity];
+        mPolicy = policy;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Queue a message according to the backpressure policy.
+     *
+     * @return false if the message was rejected, or the caller was
+     * interrupted while waiting for room
+     */
+    public boolean offer(byte[] buffer) {
+        long now = System.nanoTime();
+        final ReentrantLock lock = mLock;
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            if (mCount == mMessages.length) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        try {
+                            while (mCount == mMessages.length) {
+                                mNotFull.await();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        mMessages[mHead] = null;
+                        mHead = (mHead + 1) % mMessages.length;
+                        mCount--;
+                        mMetrics.recordDropped();
+                        break;
+                    case FAIL_FAST:
+                    default:
+                        mMetrics.recordDropped();
+                        return false;
+                }
+            }
+            int tail = (mHead + mCount) % mMessages.length;
+            mMessages[tail] = buffer;
+            mOfferNanos[tail] = now;
+            mCount++;
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next message, then move up to {@code maxMessages} queued
+     * messages into {@code batch} so they can be written together.
+     */
+    public void takeBatch(List<byte[]> batch, int maxMessages) throws InterruptedException {
+        takeBatch(batch, null, maxMessages);
+    }
+
+    /**
+     * Like {@link #takeBatch(List, int)}, and also store when each message
+     * was offered.
+     *
+     * @param offerNanos Receives the {@link System#nanoTime()} of each
+     *                   message at the index it gets in {@code batch}, or
+     *                   null. Must be long enough for the batch.
+     */
+    public void takeBatch(List<byte[]> batch, long[] offerNanos, int maxMessages) throws InterruptedException {
+        final ReentrantLock lock = mLock;
+        lock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                mNotEmpty.await();
+            }
+            int n = Math.min(mCount, maxMessages);
+            for (int i = 0; i < n; i++) {
+                if (offerNanos != null) {
+                    offerNanos[batch.size()] = mOfferNanos[mHead];
+                }
+                batch.add(mMessages[mHead]);
+                mMessages[mHead] = null;
+                mHead = (mHead + 1) % mMessages.length;
+            }
+            mCount -= n;
+            mNotFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        final ReentrantLock lock = mLock;
+        lock.lock();
+        try {
+            for (int i = 0; i < mCount; i++) {
+                mMessages[(mHead + i) % mMessages.length] = null;
+            }
+            mHead = 0;
+            mCount = 0;
+            mNotFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = mLock;
+        lock.lock();
+        try {
+            return mCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Messages discarded by {@link BackpressurePolicy#DROP_OLDEST} or
+     * rejected by {@link BackpressurePolicy#FAIL_FAST}.
+     */
+    public long getDroppedCount() {
+        return mMetrics.getDroppedCount();
+    }
+}
@@ -0,0 +1,432 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-message Deflate (RFC 1951, no zlib header) for text payloads on slow
+ * links. Every message starts with a flag byte that says whether the rest
+ * is deflated, so the sender decides per message and the receiver needs no
+ * state beyond the message itself:
+ * <ul>
+ * <li>Messages below the threshold are sent as they are; Deflate rarely
+ * wins on them and costs a few microseconds each.</li>
+ * <li>A message that does not shrink is sent as it is too, so compression
+ * never costs more than the flag byte.</li>
+ * </ul>
+ * Both peers must use a config with the same dictionary. A preset
+ * dictionary of strings the messages share, e.g. the JSON keys of the
+ * protocol, lets even short messages compress well.
+ * <p>
+ * Peers agree on compression before they use it:
+ * <ul>
+ * <li>On a stream each side that compresses first sends a
+ * {@link #newHello() hello} control frame with the checksum of its
+ * dictionary. A side that gets a matching hello sends an
+ * {@link #newAccept() accept} and flags all its messages behind it. A
+ * peer without compression, or with another dictionary, never gets
+ * flagged messages; it only has to skip the
+ * {@link #isControlFrame control frames}.</li>
+ * <li>A datagram carries its own {@link #DATAGRAM_HEADER_SIZE} byte
+ * header in front of the flag byte, so a receiver tells flagged datagrams
+ * from plain ones without any state.</li>
+ * </ul>
+ * <p>
+ * The setters return this so a config can be built in one expression.
+ * Configure it before handing it to a service; the compressors and
+ * decompressors copy the settings when they are created and keep their
+ * Deflater and Inflater for the life of a connection.
+ */
+public class DeflateCompression {
+
+    public static final int DEFAULT_THRESHOLD = 256;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    /** Flag byte of a message sent as it is. */
+    public static final byte RAW = 0;
+    /** Flag byte of a deflated message. */
+    public static final byte DEFLATE = 1;
+
+    /** Version of the flagged format in control frames and datagrams. */
+    public static final byte VERSION = 1;
+
+    // Control frame: the magic, the version, the type and for a hello the
+    // CRC-32 of the dictionary. No text message starts with a NUL byte.
+    private static final byte[] MAGIC = {0, 'D', 'F', 'L'};
+    private static final int CONTROL_HEADER_SIZE = MAGIC.length + 2;
+    private static final byte TYPE_HELLO = 'H';
+    private static final byte TYPE_ACCEPT = 'A';
+
+    /** Bytes in front of the flag byte of a datagram. */
+    public static final int DATAGRAM_HEADER_SIZE = 3;
+    private static final byte[] DATAGRAM_HEADER = {0, (byte) 0xDF, VERSION};
+    private static final byte[] NO_HEADER = new byte[0];
+
+    private int mLevel = Deflater.DEFAULT_COMPRESSION;
+    private int mThreshold = DEFAULT_THRESHOLD;
+    private byte[] mDictionary;
+    private int mMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    /**
+     * @param level 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public DeflateCompression setLevel(int level) {
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+                && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("level must be in 0..9");
+        }
+        mLevel = level;
+        return this;
+    }
+
+    /**
+     * Smallest message that is deflated.
+     */
+    public DeflateCompression setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        mThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Preset dictionary, or null for none. The most frequent strings
+     * belong at its end.
+     */
+    public DeflateCompression setDictionary(byte[] dictionary) {
+        mDictionary = dictionary != null ? dictionary.clone() : null;
+        return this;
+    }
+
+    /**
+     * Largest message a decompressor inflates, a guard against a peer
+     * that sends a small frame of a huge message.
+     */
+    public DeflateCompression setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize <= 0) {
+            throw new IllegalArgumentException("maxMessageSize must be positive");
+        }
+        mMaxMessageSize = maxMessageSize;
+        return this;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    public int getMaxMessageSize() {
+        return mMaxMessageSize;
+    }
+
+    /**
+     * Create the compressor of one connection or thread.
+     */
+    public Compressor newCompressor() {
+        return new Compressor(this, NO_HEADER);
+    }
+
+    /**
+     * Create a compressor whose output starts with the datagram header.
+     */
+    public Compressor newDatagramCompressor() {
+        return new Compressor(this, DATAGRAM_HEADER);
+    }
+
+    /**
+     * The control frame a stream starts with when this side compresses.
+     */
+    public byte[] newHello() {
+        byte[] hello = control(TYPE_HELLO);
+        byte[] frame = new byte[hello.length + 4];
+        ByteBuffer.wrap(frame).put(hello).putInt(dictionaryChecksum());
+        return frame;
+    }
+
+    /**
+     * Whether a control frame is a hello from a peer with the same
+     * dictionary, so this side may flag its messages.
+     */
+    public boolean acceptsHello(byte[] frame, int offset, int length) {
+        return length == CONTROL_HEADER_SIZE + 4 && isControl(frame, offset, length, TYPE_HELLO)
+                && ByteBuffer.wrap(frame, offset + CONTROL_HEADER_SIZE, 4).getInt() == dictionaryChecksum();
+    }
+
+    /**
+     * Whether a frame belongs to the negotiation rather than to the
+     * messages. Every peer skips these, with or without compression.
+     */
+    public static boolean isControlFrame(byte[] frame, int offset, int length) {
+        if (length < CONTROL_HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (frame[offset + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The control frame that says all messages behind it are flagged.
+     */
+    public static byte[] newAccept() {
+        return control(TYPE_ACCEPT);
+    }
+
+    public static boolean isAccept(byte[] frame, int offset, int length) {
+        return length == CONTROL_HEADER_SIZE && isControl(frame, offset, length, TYPE_ACCEPT);
+    }
+
+    /**
+     * Whether the remaining bytes of a datagram are in flagged form.
+     */
+    public static boolean isFlaggedDatagram(ByteBuffer datagram) {
+        if (datagram.remaining() <= DATAGRAM_HEADER_SIZE) {
+            return false;
+        }
+        int position = datagram.position();
+        for (int i = 0; i < DATAGRAM_HEADER_SIZE; i++) {
+            if (datagram.get(position + i) != DATAGRAM_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The flag byte of a flagged datagram.
+     */
+    public static byte datagramFlag(ByteBuffer datagram) {
+        return datagram.get(datagram.position() + DATAGRAM_HEADER_SIZE);
+    }
+
+    private static boolean isControl(byte[] frame, int offset, int length, byte type) {
+        return isControlFrame(frame, offset, length)
+                && frame[offset + MAGIC.length] == VERSION && frame[offset + MAGIC.length + 1] == type;
+    }
+
+    private static byte[] control(byte type) {
+        byte[] frame = new byte[CONTROL_HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, frame, 0, MAGIC.length);
+        frame[MAGIC.length] = VERSION;
+        frame[MAGIC.length + 1] = type;
+        return frame;
+    }
+
+    private int dictionaryChecksum() {
+        if (mDictionary == null) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(mDictionary, 0, mDictionary.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Create the decompressor of one connection or thread.
+     */
+    public Decompressor newDecompressor() {
+        return new Decompressor(this);
+    }
+
+    /**
+     * Turns messages into their flagged form. Not thread safe; the output
+     * array is reused by the next call.
+     */
+    public static final class Compressor {
+        private final Deflater mDeflater;
+        private final int mThreshold;
+        private final byte[] mDictionary;
+        // Written in front of the flag byte
+        private final byte[] mHeader;
+        private byte[] mOutput = new byte[256];
+        private boolean mDeflated;
+
+        Compressor(DeflateCompression config, byte[] header) {
+            mDeflater = new Deflater(config.mLevel, true);
+            mThreshold = config.mThreshold;
+            mDictionary = config.mDictionary;
+            mHeader = header;
+        }
+
+        public int compress(byte[] message, int offset, int length) {
+            return compress(message, offset, length, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Write the flagged form of a message to {@link #getOutput()}.
+         * A message that would not fit into maxLength as it is gets
+         * deflated even below the threshold, e.g. to fit one datagram.
+         *
+         * @param maxLength Longest output wanted, including the header and
+         *                  the flag byte
+         * @return The length of the output. It only exceeds maxLength if
+         * the message does not fit either way.
+         */
+        public int compress(byte[] message, int offset, int length, int maxLength) {
+            int flag = mHeader.length;
+            if (mOutput.length < flag + length + 1) {
+                mOutput = new byte[Math.max(flag + length + 1, mOutput.length * 2)];
+            }
+            System.arraycopy(mHeader, 0, mOutput, 0, flag);
+            mDeflated = false;
+            if (length >= mThreshold || flag + length + 1 > maxLength) {
+                // Only worth it if the result is shorter than the message
+                int limit = Math.min(length - 1, maxLength - flag - 1);
+                int n = limit > 0 ? deflate(message, offset, length, limit) : -1;
+                if (n >= 0) {
+                    mOutput[flag] = DEFLATE;
+                    mDeflated = true;
+                    return flag + n + 1;
+                }
+            }
+            mOutput[flag] = RAW;
+            System.arraycopy(message, offset, mOutput, flag + 1, length);
+            return flag + length + 1;
+        }
+
+        /**
+         * @return The deflated length, or -1 if it exceeds the limit
+         */
+        private int deflate(byte[] message, int offset, int length, int limit) {
+            mDeflater.reset();
+            if (mDictionary != null) {
+                mDeflater.setDictionary(mDictionary);
+            }
+            mDeflater.setInput(message, offset, length);
+            mDeflater.finish();
+            int n = 0;
+            while (!mDeflater.finished() && n < limit) {
+                n += mDeflater.deflate(mOutput, mHeader.length + 1 + n, limit - n);
+            }
+            return mDeflater.finished() ? n : -1;
+        }
+
+        public byte[] getOutput() {
+            return mOutput;
+        }
+
+        /**
+         * Whether the last message was deflated rather than sent as it is.
+         */
+        public boolean isDeflated() {
+            return mDeflated;
+        }
+
+        /**
+         * Free the native memory of the Deflater. The compressor must not
+         * be used afterwards.
+         */
+        public void end() {
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * Turns flagged messages back into what was sent. Not thread safe; the
+     * returned buffer is a read-only view, reused by the next call.
+     */
+    public static final class Decompressor {
+        private final Inflater mInflater = new Inflater(true);
+        private final byte[] mDictionary;
+        private final int mMaxMessageSize;
+        private byte[] mInput = new byte[0];
+        private byte[] mOutput = new byte[1024];
+        private ByteBuffer mOutputView = ByteBuffer.wrap(mOutput).asReadOnlyBuffer();
+
+        Decompressor(DeflateCompression config) {
+            mDictionary = config.mDictionary;
+            mMaxMessageSize = config.mMaxMessageSize;
+        }
+
+        /**
+         * @return The message, valid until the next call
+         * @throws IOException if the frame is empty, has an unknown flag or
+         *                     holds corrupt or oversized Deflate data
+         */
+        public ByteBuffer decompress(byte[] frame, int offset, int length) throws IOException {
+            if (length == 0) {
+                throw new IOException("Compressed frame without a flag byte");
+            }
+            byte flag = frame[offset];
+            if (flag == RAW) {
+                return ByteBuffer.wrap(frame, offset + 1, length - 1).asReadOnlyBuffer();
+            }
+            if (flag != DEFLATE) {
+                throw new IOException("Unknown compression flag " + flag);
+            }
+            int n = inflate(frame, offset + 1, length - 1);
+            // After inflate(), which may have grown the output
+            if (mOutputView.capacity() != mOutput.length) {
+                mOutputView = ByteBuffer.wrap(mOutput).asReadOnlyBuffer();
+            }
+            mOutputView.limit(n).position(0);
+            return mOutputView;
+        }
+
+        /**
+         * Decompress the remaining bytes of a buffer and consume them.
+         */
+        public ByteBuffer decompress(ByteBuffer frame) throws IOException {
+            int length = frame.remaining();
+            if (frame.hasArray()) {
+                ByteBuffer message = decompress(frame.array(), frame.arrayOffset() + frame.position(), length);
+                frame.position(frame.limit());
+                return message;
+            }
+            if (mInput.length < length) {
+                mInput = new byte[length];
+            }
+            frame.get(mInput, 0, length);
+            return decompress(mInput, 0, length);
+        }
+
+        private int inflate(byte[] data, int offset, int length) throws IOException {
+            mInflater.reset();
+            if (mDictionary != null) {
+                // Raw Deflate names no dictionary, it is set up front
+                mInflater.setDictionary(mDictionary);
+            }
+            mInflater.setInput(data, offset, length);
+            int n = 0;
+            try {
+                while (!mInflater.finished()) {
+                    if (n == mOutput.length) {
+                        if (n >= mMaxMessageSize) {
+                            throw new IOException("Message exceeds " + mMaxMessageSize + " bytes");
+                        }
+                        byte[] bigger = new byte[(int) Math.min((long) n * 2, mMaxMessageSize)];
+                        System.arraycopy(mOutput, 0, bigger, 0, n);
+                        mOutput = bigger;
+                    }
+                    int inflated = mInflater.inflate(mOutput, n, mOutput.length - n);
+                    n += inflated;
+                    if (inflated == 0 && !mInflater.finished() && mInflater.needsInput()) {
+                        throw new IOException("Truncated Deflate data");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt Deflate data", e);
+            }
+            return n;
+        }
+
+        /**
+         * Free the native memory of the Inflater. The decompressor must
+         * not be used afterwards.
+         */
+        public void end() {
+            mInflater.end();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Terminates every frame with a delimiter byte, {@code '\n'} by default.
+ * This is what a line based peer such as {@code nc} or a
+ * {@code BufferedReader} expects. Payloads must not contain the delimiter.
+ */
+public class DelimiterFrameCodec implements FrameCodec {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final byte mDelimiter;
+    private final int mMaxFrameLength;
+
+    public DelimiterFrameCodec() {
+        this((byte) '\n', DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public DelimiterFrameCodec(byte delimiter, int maxFrameLength) {
+        mDelimiter = delimiter;
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer payload) {
+        return new ByteBuffer[]{payload, ByteBuffer.wrap(new byte[]{mDelimiter})};
+    }
+
+    @Override
+    public int overhead(int length) {
+        return 1;
+    }
+
+    @Override
+    public void encode(byte[] payload, int offset, int length, ByteBuffer out) {
+        out.put(payload, offset, length).put(mDelimiter);
+    }
+
+    @Override
+    public FrameDecoder newDecoder() {
+        return new FrameDecoder(mMaxFrameLength) {
+            // Bytes after the frame start that are known not to be a delimiter
+            private int mScanned;
+
+            @Override
+            protected int decodeFrame(byte[] buffer, int start, int end,
+                                      FrameListener listener) throws IOException {
+                for (int pos = start + mScanned; pos < end; pos++) {
+                    if (buffer[pos] == mDelimiter) {
+                        mScanned = 0;
+                        listener.onFrame(buffer, start, pos - start);
+                        return pos - start + 1;
+                    }
+                }
+                mScanned = end - start;
+                checkFrameLength(mScanned);
+                return 0;
+            }
+        };
+    }
+}
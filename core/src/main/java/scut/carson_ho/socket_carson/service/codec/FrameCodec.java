@@ -0,0 +1,44 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a TCP byte stream into messages. The same codec has to be used on
+ * both ends of a connection so that they agree on message boundaries.
+ */
+public interface FrameCodec {
+
+    /**
+     * Callback for every complete frame found by a {@link FrameDecoder}.
+     * The array is the decoder's own buffer and is only valid during the call.
+     */
+    interface FrameListener {
+        void onFrame(byte[] array, int offset, int length);
+    }
+
+    /**
+     * Wrap a payload into a frame. The payload is not copied: the returned
+     * buffers are the header, the payload itself and the trailer (empty
+     * buffers are left out), ready for a gathering write.
+     *
+     * @param payload The bytes to send
+     */
+    ByteBuffer[] encode(ByteBuffer payload);
+
+    /**
+     * Number of bytes a frame adds to a payload of the given length.
+     */
+    int overhead(int length);
+
+    /**
+     * Copy a payload into {@code out} as a whole frame without allocating.
+     * The caller makes sure that {@code length + overhead(length)} bytes
+     * are remaining.
+     */
+    void encode(byte[] payload, int offset, int length, ByteBuffer out);
+
+    /**
+     * Create a decoder holding the receive state of one connection.
+     */
+    FrameDecoder newDecoder();
+}
@@ -0,0 +1,141 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Receive side of a {@link FrameCodec}. The socket reads straight into the
+ * decoder's buffer, frames are handed to the listener as slices of that
+ * buffer and the read position is reset for free once everything has been
+ * consumed. Only the unfinished tail of a frame is ever moved, when it
+ * reaches the end of the buffer. The buffer wrappers are created again
+ * only when the buffer grows, so a steady stream of frames allocates
+ * nothing.
+ */
+public abstract class FrameDecoder {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final int mMaxFrameLength;
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    // Channel reads go through this wrapper of mBuffer
+    private ByteBuffer mReadBuffer = ByteBuffer.wrap(mBuffer);
+    private ByteBuffer mFrameView = mReadBuffer.asReadOnlyBuffer();
+    private int mStart;
+    private int mEnd;
+
+    protected FrameDecoder(int maxFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Read once from a blocking stream into the decoder buffer.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        ensureWritable();
+        int bytes = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (bytes > 0) {
+            mEnd += bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Read once from a channel into the decoder buffer.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureWritable();
+        mReadBuffer.limit(mBuffer.length).position(mEnd);
+        int bytes = channel.read(mReadBuffer);
+        if (bytes > 0) {
+            mEnd += bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Copy bytes that were received elsewhere into the decoder buffer.
+     */
+    public void feed(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            ensureWritable();
+            int bytes = Math.min(src.remaining(), mBuffer.length - mEnd);
+            src.get(mBuffer, mEnd, bytes);
+            mEnd += bytes;
+        }
+    }
+
+    /**
+     * Deliver every complete frame that is in the buffer.
+     *
+     * @throws FrameTooLongException if a frame exceeds the maximum length
+     */
+    public void decode(FrameCodec.FrameListener listener) throws IOException {
+        int consumed;
+        while (mStart < mEnd && (consumed = decodeFrame(mBuffer, mStart, mEnd, listener)) > 0) {
+            mStart += consumed;
+        }
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * Return a read-only view of {@code [offset, offset + length)} of the
+     * decoder buffer, for the frame passed to
+     * {@link FrameCodec.FrameListener#onFrame}. The same view object is
+     * returned every time, so it is only valid until the next call.
+     */
+    public ByteBuffer frameView(int offset, int length) {
+        mFrameView.limit(offset + length).position(offset);
+        return mFrameView;
+    }
+
+    /**
+     * Number of received bytes that do not form a complete frame yet.
+     */
+    public int buffered() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * Try to decode one frame from {@code buffer[start, end)}.
+     *
+     * @return the number of bytes the frame occupies, or 0 if it is incomplete
+     */
+    protected abstract int decodeFrame(byte[] buffer, int start, int end,
+                                       FrameCodec.FrameListener listener) throws IOException;
+
+    protected void checkFrameLength(long length) throws FrameTooLongException {
+        if (length > mMaxFrameLength) {
+            throw new FrameTooLongException(length, mMaxFrameLength);
+        }
+    }
+
+    private void ensureWritable() {
+        if (mEnd < mBuffer.length) {
+            return;
+        }
+        int pending = mEnd - mStart;
+        if (mStart > 0 && pending < mBuffer.length / 2) {
+            // Move the unfinished frame to the front
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+        } else {
+            // The frame does not fit, grow the buffer
+            byte[] buffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, mStart, buffer, 0, pending);
+            mBuffer = buffer;
+            mReadBuffer = ByteBuffer.wrap(mBuffer);
+            mFrameView = mReadBuffer.asReadOnlyBuffer();
+        }
+        mStart = 0;
+        mEnd = pending;
+    }
+}
@@ -0,0 +1,17 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer announces or sends a frame larger than the decoder
+ * accepts. The stream can not be resynchronized, so the connection has to
+ * be closed.
+ */
+public class FrameTooLongException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameTooLongException(long length, int maxFrameLength) {
+        super("Frame of " + length + " bytes exceeds the limit of " + maxFrameLength);
+    }
+}
@@ -0,0 +1,92 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Prefixes every frame with its payload length as an unsigned base 128
+ * varint (the protobuf encoding): one byte for frames up to 127 bytes, two
+ * up to 16 KB and at most five bytes.
+ */
+public class VarintFrameCodec implements FrameCodec {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private static final int MAX_VARINT_LENGTH = 5;
+
+    private final int mMaxFrameLength;
+
+    public VarintFrameCodec() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public VarintFrameCodec(int maxFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer[] encode(ByteBuffer payload) {
+        ByteBuffer header = ByteBuffer.allocate(MAX_VARINT_LENGTH);
+        putVarint(header, payload.remaining());
+        header.flip();
+        return new ByteBuffer[]{header, payload};
+    }
+
+    @Override
+    public int overhead(int length) {
+        int bytes = 1;
+        while ((length & ~0x7F) != 0) {
+            length >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void encode(byte[] payload, int offset, int length, ByteBuffer out) {
+        putVarint(out, length);
+        out.put(payload, offset, length);
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    @Override
+    public FrameDecoder newDecoder() {
+        return new FrameDecoder(mMaxFrameLength) {
+            @Override
+            protected int decodeFrame(byte[] buffer, int start, int end,
+                                      FrameListener listener) throws IOException {
+                long length = 0;
+                int shift = 0;
+                int pos = start;
+                while (true) {
+                    if (pos == end) {
+                        // Header is incomplete
+                        return 0;
+                    }
+                    byte b = buffer[pos++];
+                    length |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                    shift += 7;
+                    if (pos - start == MAX_VARINT_LENGTH) {
+                        throw new FrameTooLongException(length, mMaxFrameLength);
+                    }
+                }
+                checkFrameLength(length);
+                if (end - pos < length) {
+                    return 0;
+                }
+                listener.onFrame(buffer, pos, (int) length);
+                return pos - start + (int) length;
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What compression did to the messages of a connection at one point in
+ * time. Raw bytes are the messages as written and received, wire bytes
+ * their compressed form with the flag byte, both without framing. All
+ * zero when compression is off.
+ */
+public final class CompressionStats {
+
+    private final long mRawBytesOut;
+    private final long mWireBytesOut;
+    private final long mDeflatedOut;
+    private final long mCompressNanos;
+    private final long mWireBytesIn;
+    private final long mRawBytesIn;
+    private final long mDecompressNanos;
+
+    CompressionStats(long rawBytesOut, long wireBytesOut, long deflatedOut, long compressNanos,
+                     long wireBytesIn, long rawBytesIn, long decompressNanos) {
+        mRawBytesOut = rawBytesOut;
+        mWireBytesOut = wireBytesOut;
+        mDeflatedOut = deflatedOut;
+        mCompressNanos = compressNanos;
+        mWireBytesIn = wireBytesIn;
+        mRawBytesIn = rawBytesIn;
+        mDecompressNanos = decompressNanos;
+    }
+
+    public long getRawBytesOut() {
+        return mRawBytesOut;
+    }
+
+    public long getWireBytesOut() {
+        return mWireBytesOut;
+    }
+
+    /**
+     * Messages sent deflated; the others were below the threshold or did
+     * not shrink.
+     */
+    public long getDeflatedMessagesOut() {
+        return mDeflatedOut;
+    }
+
+    /**
+     * CPU time spent compressing, measured around every call.
+     */
+    public long getCompressNanos() {
+        return mCompressNanos;
+    }
+
+    public long getWireBytesIn() {
+        return mWireBytesIn;
+    }
+
+    public long getRawBytesIn() {
+        return mRawBytesIn;
+    }
+
+    public long getDecompressNanos() {
+        return mDecompressNanos;
+    }
+
+    /**
+     * Wire bytes per raw byte sent, e.g. 0.25 when messages shrank to a
+     * quarter; 1 before anything was sent.
+     */
+    public double getRatioOut() {
+        return mRawBytesOut > 0 ? (double) mWireBytesOut / mRawBytesOut : 1;
+    }
+
+    /**
+     * Wire bytes per raw byte received.
+     */
+    public double getRatioIn() {
+        return mRawBytesIn > 0 ? (double) mWireBytesIn / mRawBytesIn : 1;
+    }
+
+    /**
+     * Return the values of both together.
+     */
+    public CompressionStats plus(CompressionStats other) {
+        return new CompressionStats(mRawBytesOut + other.mRawBytesOut, mWireBytesOut + other.mWireBytesOut,
+                mDeflatedOut + other.mDeflatedOut, mCompressNanos + other.mCompressNanos,
+                mWireBytesIn + other.mWireBytesIn, mRawBytesIn + other.mRawBytesIn,
+                mDecompressNanos + other.mDecompressNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "out %.2f of %d B in %dus, in %.2f of %d B in %dus",
+                getRatioOut(), mRawBytesOut, TimeUnit.NANOSECONDS.toMicros(mCompressNanos),
+                getRatioIn(), mRawBytesIn, TimeUnit.NANOSECONDS.toMicros(mDecompressNanos));
+    }
+}
@@ -0,0 +1,173 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in nanoseconds, counted in log-linear buckets like
+ * HdrHistogram with one significant digit: every power of two is split
+ * into 8 buckets, so a percentile is at most 12.5% above the true value.
+ * Recording is one array increment and never allocates; values above
+ * about half an hour land in the last bucket.
+ * <p>
+ * The services record each histogram from a single thread, the writer or
+ * the reader of a connection, so the buckets are plain atomics.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter mSum;
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(true);
+    }
+
+    /**
+     * @param striped false for a histogram of one connection, see
+     *                {@link StripedCounter}
+     */
+    LatencyHistogram(boolean striped) {
+        mSum = new StripedCounter(striped);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * The largest value that falls into a bucket.
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        mCounts.getAndIncrement(bucket(nanos));
+        mSum.add(nanos);
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Add every value recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.mCounts.get(i);
+            if (count != 0) {
+                mCounts.getAndAdd(i, count);
+            }
+        }
+        mSum.add(other.mSum.sum());
+        long otherMax = other.mMax.get();
+        long max = mMax.get();
+        while (otherMax > max && !mMax.compareAndSet(max, otherMax)) {
+            max = mMax.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSum.sum(), mMax.get());
+    }
+
+    /**
+     * The values of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxNanos() {
+            return mMax;
+        }
+
+        public long getMeanNanos() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        /**
+         * @param percentile 0 to 100, e.g. 99.9
+         * @return the highest value of the bucket the percentile falls
+         * into, never more than the maximum, or 0 without values
+         */
+        public long getPercentileNanos(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(highestValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * Return the values of both snapshots together.
+         */
+        public Snapshot plus(Snapshot other) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mCounts[i] + other.mCounts[i];
+            }
+            return new Snapshot(counts, mCount + other.mCount, mSum + other.mSum, Math.max(mMax, other.mMax));
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " p50=" + micros(getPercentileNanos(50))
+                    + " p99=" + micros(getPercentileNanos(99))
+                    + " p999=" + micros(getPercentileNanos(99.9))
+                    + " max=" + micros(mMax);
+        }
+
+        private static String micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+        }
+    }
+}
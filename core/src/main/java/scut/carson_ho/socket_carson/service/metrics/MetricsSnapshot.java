@@ -0,0 +1,212 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable copy of the metrics of a service or of one of its connections.
+ * A service snapshot holds the totals of every connection it ever had and
+ * a snapshot of each open one. The counters are read one after the other
+ * while traffic goes on, so they may be off by the messages in flight.
+ */
+public final class MetricsSnapshot {
+
+    private final String mName;
+    private final String mPeer;
+    private final long mTimestampMillis;
+    private final long mBytesIn;
+    private final long mBytesOut;
+    private final long mMessagesIn;
+    private final long mMessagesOut;
+    private final long mDropped;
+    private final long mQueueDepth;
+    private final LatencyHistogram.Snapshot mSendLatency;
+    private final LatencyHistogram.Snapshot mReceiveLatency;
+    private final CompressionStats mCompression;
+    private final long mConnectionsOpened;
+    private final long mReconnects;
+    private final long mConnectFailures;
+    private final List<MetricsSnapshot> mConnections;
+
+    MetricsSnapshot(String name, String peer, long timestampMillis,
+                    long bytesIn, long bytesOut, long messagesIn, long messagesOut,
+                    long dropped, long queueDepth,
+                    LatencyHistogram.Snapshot sendLatency, LatencyHistogram.Snapshot receiveLatency,
+                    CompressionStats compression) {
+        this(name, peer, timestampMillis, bytesIn, bytesOut, messagesIn, messagesOut, dropped, queueDepth,
+                sendLatency, receiveLatency, compression, 0, 0, 0, Collections.<MetricsSnapshot>emptyList());
+    }
+
+    MetricsSnapshot(String name, String peer, long timestampMillis,
+                    long bytesIn, long bytesOut, long messagesIn, long messagesOut,
+                    long dropped, long queueDepth,
+                    LatencyHistogram.Snapshot sendLatency, LatencyHistogram.Snapshot receiveLatency,
+                    CompressionStats compression, long connectionsOpened, long reconnects, long connectFailures,
+                    List<MetricsSnapshot> connections) {
+        mName = name;
+        mPeer = peer;
+        mTimestampMillis = timestampMillis;
+        mBytesIn = bytesIn;
+        mBytesOut = bytesOut;
+        mMessagesIn = messagesIn;
+        mMessagesOut = messagesOut;
+        mDropped = dropped;
+        mQueueDepth = queueDepth;
+        mSendLatency = sendLatency;
+        mReceiveLatency = receiveLatency;
+        mCompression = compression;
+        mConnectionsOpened = connectionsOpened;
+        mReconnects = reconnects;
+        mConnectFailures = connectFailures;
+        mConnections = connections;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * The remote address of a connection, null for a service.
+     */
+    public String getPeer() {
+        return mPeer;
+    }
+
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public long getMessagesIn() {
+        return mMessagesIn;
+    }
+
+    public long getMessagesOut() {
+        return mMessagesOut;
+    }
+
+    /**
+     * Messages that were never sent because a queue was full.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Messages waiting to be sent when the snapshot was taken.
+     */
+    public long getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public LatencyHistogram.Snapshot getSendLatency() {
+        return mSendLatency;
+    }
+
+    public LatencyHistogram.Snapshot getReceiveLatency() {
+        return mReceiveLatency;
+    }
+
+    /**
+     * Bytes before and after compression and the time it took, all zero
+     * when compression is off.
+     */
+    public CompressionStats getCompression() {
+        return mCompression;
+    }
+
+    public long getConnectionsOpened() {
+        return mConnectionsOpened;
+    }
+
+    public long getReconnectCount() {
+        return mReconnects;
+    }
+
+    public long getConnectFailureCount() {
+        return mConnectFailures;
+    }
+
+    /**
+     * Snapshots of the connections that were open, empty for a connection
+     * or a connectionless service.
+     */
+    public List<MetricsSnapshot> getConnections() {
+        return mConnections;
+    }
+
+    /**
+     * Flatten the snapshot into names and values for a monitoring system,
+     * e.g. {@code messages_out} or {@code connection.3.send_latency_p99_us}.
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        putTransport(map, "");
+        map.put("connections", (long) mConnections.size());
+        map.put("connections_opened", mConnectionsOpened);
+        map.put("reconnects", mReconnects);
+        map.put("connect_failures", mConnectFailures);
+        for (MetricsSnapshot connection : mConnections) {
+            connection.putTransport(map, "connection." + connection.mName + ".");
+        }
+        return map;
+    }
+
+    private void putTransport(Map<String, Long> map, String prefix) {
+        map.put(prefix + "bytes_in", mBytesIn);
+        map.put(prefix + "bytes_out", mBytesOut);
+        map.put(prefix + "messages_in", mMessagesIn);
+        map.put(prefix + "messages_out", mMessagesOut);
+        map.put(prefix + "dropped", mDropped);
+        map.put(prefix + "queue_depth", mQueueDepth);
+        putLatency(map, prefix + "send_latency", mSendLatency);
+        putLatency(map, prefix + "receive_latency", mReceiveLatency);
+        map.put(prefix + "compression_raw_bytes_out", mCompression.getRawBytesOut());
+        map.put(prefix + "compression_wire_bytes_out", mCompression.getWireBytesOut());
+        map.put(prefix + "compression_deflated_out", mCompression.getDeflatedMessagesOut());
+        map.put(prefix + "compression_out_us", TimeUnit.NANOSECONDS.toMicros(mCompression.getCompressNanos()));
+        map.put(prefix + "compression_raw_bytes_in", mCompression.getRawBytesIn());
+        map.put(prefix + "compression_wire_bytes_in", mCompression.getWireBytesIn());
+        map.put(prefix + "compression_in_us", TimeUnit.NANOSECONDS.toMicros(mCompression.getDecompressNanos()));
+    }
+
+    private static void putLatency(Map<String, Long> map, String prefix, LatencyHistogram.Snapshot latency) {
+        map.put(prefix + "_count", latency.getCount());
+        map.put(prefix + "_mean_us", TimeUnit.NANOSECONDS.toMicros(latency.getMeanNanos()));
+        map.put(prefix + "_p50_us", TimeUnit.NANOSECONDS.toMicros(latency.getPercentileNanos(50)));
+        map.put(prefix + "_p99_us", TimeUnit.NANOSECONDS.toMicros(latency.getPercentileNanos(99)));
+        map.put(prefix + "_p999_us", TimeUnit.NANOSECONDS.toMicros(latency.getPercentileNanos(99.9)));
+        map.put(prefix + "_max_us", TimeUnit.NANOSECONDS.toMicros(latency.getMaxNanos()));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mName);
+        if (mPeer != null) {
+            sb.append(" (").append(mPeer).append(')');
+        }
+        sb.append(": in ").append(mMessagesIn).append(" msgs/").append(mBytesIn).append(" B")
+                .append(", out ").append(mMessagesOut).append(" msgs/").append(mBytesOut).append(" B")
+                .append(", dropped ").append(mDropped)
+                .append(", queued ").append(mQueueDepth)
+                .append(", send [").append(mSendLatency).append(']')
+                .append(", receive [").append(mReceiveLatency).append(']');
+        if (mCompression.getRawBytesOut() > 0 || mCompression.getRawBytesIn() > 0) {
+            sb.append(", compression [").append(mCompression).append(']');
+        }
+        for (MetricsSnapshot connection : mConnections) {
+            sb.append("\n  ").append(connection);
+        }
+        return sb.toString();
+    }
+}
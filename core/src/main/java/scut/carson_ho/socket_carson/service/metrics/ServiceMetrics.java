@@ -0,0 +1,88 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metrics of a service over its whole life. Each connection records into
+ * its own {@link TransportMetrics}, which is added to the totals here when
+ * the connection closes; a connectionless service records into
+ * {@link #transport()} directly.
+ */
+public final class ServiceMetrics {
+
+    // Closed connections and connectionless traffic
+    private final TransportMetrics mTotals = new TransportMetrics();
+    private final StripedCounter mConnectionsOpened = new StripedCounter();
+    private final StripedCounter mReconnects = new StripedCounter();
+    private final StripedCounter mConnectFailures = new StripedCounter();
+
+    /**
+     * Where a service without connections records its traffic.
+     */
+    public TransportMetrics transport() {
+        return mTotals;
+    }
+
+    /**
+     * Return the metrics for a new connection.
+     */
+    public TransportMetrics openConnection() {
+        mConnectionsOpened.increment();
+        return new TransportMetrics(false);
+    }
+
+    /**
+     * Keep the traffic of a closed connection in the totals. Call once.
+     * So that no snapshot counts a connection twice or misses it, a
+     * service holds the lock on this instance both while it merges a
+     * connection and stops passing it to {@link #snapshot}, and while it
+     * collects the connections and takes the snapshot.
+     */
+    public void closeConnection(TransportMetrics connection) {
+        connection.addTo(mTotals);
+    }
+
+    public void recordReconnect() {
+        mReconnects.increment();
+    }
+
+    public void recordConnectFailure() {
+        mConnectFailures.increment();
+    }
+
+    /**
+     * @param name        What the snapshot describes, usually the service
+     * @param queueDepth  Messages waiting outside of any connection
+     * @param connections Snapshots of the open connections, added to the
+     *                    totals
+     */
+    public MetricsSnapshot snapshot(String name, long queueDepth, List<MetricsSnapshot> connections) {
+        MetricsSnapshot totals = mTotals.snapshot(name, null, queueDepth);
+        long bytesIn = totals.getBytesIn();
+        long bytesOut = totals.getBytesOut();
+        long messagesIn = totals.getMessagesIn();
+        long messagesOut = totals.getMessagesOut();
+        long dropped = totals.getDroppedCount();
+        LatencyHistogram.Snapshot sendLatency = totals.getSendLatency();
+        LatencyHistogram.Snapshot receiveLatency = totals.getReceiveLatency();
+        CompressionStats compression = totals.getCompression();
+        for (MetricsSnapshot connection : connections) {
+            bytesIn += connection.getBytesIn();
+            bytesOut += connection.getBytesOut();
+            messagesIn += connection.getMessagesIn();
+            messagesOut += connection.getMessagesOut();
+            dropped += connection.getDroppedCount();
+            queueDepth += connection.getQueueDepth();
+            sendLatency = sendLatency.plus(connection.getSendLatency());
+            receiveLatency = receiveLatency.plus(connection.getReceiveLatency());
+            compression = compression.plus(connection.getCompression());
+        }
+        return new MetricsSnapshot(name, null, totals.getTimestampMillis(),
+                bytesIn, bytesOut, messagesIn, messagesOut, dropped, queueDepth,
+                sendLatency, receiveLatency, compression,
+                mConnectionsOpened.sum(), mReconnects.sum(), mConnectFailures.sum(),
+                Collections.unmodifiableList(new ArrayList<>(connections)));
+    }
+}
@@ -0,0 +1,79 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one cache
+ * line. Each thread adds to one of several cells chosen by its id, and
+ * {@link #sum()} adds the cells up. This is what LongAdder does, which is
+ * only available from Android API level 24.
+ * <p>
+ * The sum is not an atomic snapshot: adds that race with it may or may not
+ * be included.
+ * <p>
+ * A counter that only one or two threads add to, such as those of a
+ * single connection, gets by with one unpadded cell, which is just an
+ * atomic long.
+ */
+public final class StripedCounter {
+
+    // 8 longs = 64 bytes, so every cell has a cache line of its own
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray mCells;
+    private final int mStripes;
+    private final int mPadding;
+
+    public StripedCounter() {
+        this(true);
+    }
+
+    /**
+     * @param striped false for a single cell
+     */
+    StripedCounter(boolean striped) {
+        mStripes = striped ? STRIPES : 1;
+        mPadding = striped ? PADDING : 1;
+        mCells = new AtomicLongArray(mStripes * mPadding);
+    }
+
+    private static int stripes(int processors) {
+        int stripes = 1;
+        while (stripes < processors && stripes < 16) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private int cell() {
+        if (mStripes == 1) {
+            return 0;
+        }
+        long id = Thread.currentThread().getId();
+        // Spread consecutive ids, threads are usually created in a row
+        int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return (hash & (mStripes - 1)) * mPadding;
+    }
+
+    public void add(long delta) {
+        mCells.getAndAdd(cell(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < mCells.length(); i += mPadding) {
+            sum += mCells.get(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,144 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+/**
+ * Traffic of one connection, or of a connectionless transport: bytes and
+ * messages in each direction, dropped messages, two latencies and what
+ * compression saved.
+ * <ul>
+ * <li>Send: from write() until the message was handed to the socket.</li>
+ * <li>Receive: from the read that completed the message until the
+ * listener returned.</li>
+ * </ul>
+ * Recording never blocks and never allocates, so it stays on in release
+ * builds.
+ * <p>
+ * The totals of a service are striped so that many threads can record at
+ * once. The metrics of one connection are only recorded by its reader
+ * and writer threads and use plain atomics, which keeps an idle
+ * connection at a few kilobytes, mostly the latency buckets.
+ */
+public final class TransportMetrics {
+
+    private final StripedCounter mBytesIn;
+    private final StripedCounter mBytesOut;
+    private final StripedCounter mMessagesIn;
+    private final StripedCounter mMessagesOut;
+    private final StripedCounter mDropped;
+    private final LatencyHistogram mSendLatency;
+    private final LatencyHistogram mReceiveLatency;
+    private final StripedCounter mRawBytesOut;
+    private final StripedCounter mWireBytesOut;
+    private final StripedCounter mDeflatedOut;
+    private final StripedCounter mCompressNanos;
+    private final StripedCounter mWireBytesIn;
+    private final StripedCounter mRawBytesIn;
+    private final StripedCounter mDecompressNanos;
+
+    public TransportMetrics() {
+        this(true);
+    }
+
+    /**
+     * @param striped false for the metrics of one connection
+     */
+    TransportMetrics(boolean striped) {
+        mBytesIn = new StripedCounter(striped);
+        mBytesOut = new StripedCounter(striped);
+        mMessagesIn = new StripedCounter(striped);
+        mMessagesOut = new StripedCounter(striped);
+        mDropped = new StripedCounter(striped);
+        mRawBytesOut = new StripedCounter(striped);
+        mWireBytesOut = new StripedCounter(striped);
+        mDeflatedOut = new StripedCounter(striped);
+        mCompressNanos = new StripedCounter(striped);
+        mWireBytesIn = new StripedCounter(striped);
+        mRawBytesIn = new StripedCounter(striped);
+        mDecompressNanos = new StripedCounter(striped);
+        mSendLatency = new LatencyHistogram(striped);
+        mReceiveLatency = new LatencyHistogram(striped);
+    }
+
+    public void recordBytesIn(long bytes) {
+        mBytesIn.add(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+        mBytesOut.add(bytes);
+    }
+
+    public void recordMessageIn(long latencyNanos) {
+        mMessagesIn.increment();
+        mReceiveLatency.record(latencyNanos);
+    }
+
+    public void recordMessageOut(long latencyNanos) {
+        mMessagesOut.increment();
+        mSendLatency.record(latencyNanos);
+    }
+
+    public void recordDropped() {
+        mDropped.increment();
+    }
+
+    public void recordDropped(long messages) {
+        mDropped.add(messages);
+    }
+
+    /**
+     * @param rawBytes  The message as written
+     * @param wireBytes Its compressed form with the flag byte
+     * @param deflated  Whether it was deflated or sent as it is
+     */
+    public void recordCompression(long rawBytes, long wireBytes, boolean deflated, long nanos) {
+        mRawBytesOut.add(rawBytes);
+        mWireBytesOut.add(wireBytes);
+        if (deflated) {
+            mDeflatedOut.increment();
+        }
+        mCompressNanos.add(nanos);
+    }
+
+    public void recordDecompression(long wireBytes, long rawBytes, long nanos) {
+        mWireBytesIn.add(wireBytes);
+        mRawBytesIn.add(rawBytes);
+        mDecompressNanos.add(nanos);
+    }
+
+    public long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+    /**
+     * Add everything recorded here to another instance, e.g. the totals
+     * of a service when a connection closes.
+     */
+    public void addTo(TransportMetrics target) {
+        target.mBytesIn.add(mBytesIn.sum());
+        target.mBytesOut.add(mBytesOut.sum());
+        target.mMessagesIn.add(mMessagesIn.sum());
+        target.mMessagesOut.add(mMessagesOut.sum());
+        target.mDropped.add(mDropped.sum());
+        target.mSendLatency.add(mSendLatency);
+        target.mReceiveLatency.add(mReceiveLatency);
+        target.mRawBytesOut.add(mRawBytesOut.sum());
+        target.mWireBytesOut.add(mWireBytesOut.sum());
+        target.mDeflatedOut.add(mDeflatedOut.sum());
+        target.mCompressNanos.add(mCompressNanos.sum());
+        target.mWireBytesIn.add(mWireBytesIn.sum());
+        target.mRawBytesIn.add(mRawBytesIn.sum());
+        target.mDecompressNanos.add(mDecompressNanos.sum());
+    }
+
+    /**
+     * @param name       What the snapshot describes, e.g. a connection id
+     * @param peer       The remote address, or null
+     * @param queueDepth Messages that currently wait to be sent
+     */
+    public MetricsSnapshot snapshot(String name, String peer, long queueDepth) {
+        return new MetricsSnapshot(name, peer, System.currentTimeMillis(),
+                mBytesIn.sum(), mBytesOut.sum(), mMessagesIn.sum(), mMessagesOut.sum(),
+                mDropped.sum(), queueDepth, mSendLatency.snapshot(), mReceiveLatency.snapshot(),
+                new CompressionStats(mRawBytesOut.sum(), mWireBytesOut.sum(), mDeflatedOut.sum(),
+                        mCompressNanos.sum(), mWireBytesIn.sum(), mRawBytesIn.sum(), mDecompressNanos.sum()));
+    }
+}
@@ -0,0 +1,56 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void capacityIsRoundedUpToASizeClass() {
+        BufferPool pool = new BufferPool(false, 64 * 1024);
+
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(1).buffer().capacity());
+        assertEquals(512, pool.acquire(257).buffer().capacity());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.acquire(BufferPool.MAX_BUFFER_SIZE).buffer().capacity());
+        // Too big to pool, exact size
+        assertEquals(100000, pool.acquire(100000).buffer().capacity());
+    }
+
+    @Test
+    public void releasedBufferIsReusedCleared() {
+        BufferPool pool = new BufferPool(true, 64 * 1024);
+        PooledBuffer first = pool.acquire(1000);
+        first.buffer().putInt(42);
+        first.release();
+
+        PooledBuffer second = pool.acquire(1000);
+        assertSame(first, second);
+        assertEquals(0, second.buffer().position());
+        assertEquals(second.buffer().capacity(), second.buffer().limit());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void sharedReleaseSkipsTheThreadCache() throws InterruptedException {
+        final BufferPool pool = new BufferPool(false, 64 * 1024);
+        final PooledBuffer[] released = new PooledBuffer[1];
+        Thread writer = new Thread(() -> {
+            released[0] = pool.acquire(16 * 1024);
+            released[0].release(true);
+        });
+        writer.start();
+        writer.join();
+
+        // Another thread gets it although the writer never acquires again
+        assertSame(released[0], pool.acquire(16 * 1024));
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseThrows() {
+        PooledBuffer buffer = new BufferPool(false, 64 * 1024).acquire(16);
+        buffer.release();
+        buffer.release();
+    }
+}
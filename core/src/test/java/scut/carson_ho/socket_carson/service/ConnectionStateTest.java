@@ -0,0 +1,54 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static scut.carson_ho.socket_carson.service.SocketService.*;
+
+public class ConnectionStateTest {
+
+    @Test
+    public void notifiesEachTransitionOnce() {
+        List<String> transitions = new ArrayList<>();
+        ConnectionState state = new ConnectionState((from, to) -> transitions.add(from + "->" + to));
+
+        assertTrue(state.moveTo(STATE_LISTEN));
+        assertTrue(state.moveTo(STATE_LISTEN));
+        assertTrue(state.moveTo(STATE_CONNECTED));
+        assertTrue(state.moveTo(STATE_NONE));
+
+        assertEquals(STATE_NONE, state.get());
+        assertEquals("[0->1, 1->3, 3->0]", transitions.toString());
+    }
+
+    @Test
+    public void rejectsInvalidTransitions() {
+        List<String> transitions = new ArrayList<>();
+        ConnectionState state = new ConnectionState((from, to) -> transitions.add(from + "->" + to));
+
+        // A connection that completes after stop() must not revive the service
+        assertFalse(state.moveTo(STATE_CONNECTED));
+        assertEquals(STATE_NONE, state.get());
+        assertTrue(transitions.isEmpty());
+    }
+
+    @Test
+    public void compareAndSetOnlyFromExpectedState() {
+        ConnectionState state = new ConnectionState((from, to) -> {
+        });
+        state.moveTo(STATE_CONNECTING);
+
+        assertFalse(state.compareAndSet(STATE_CONNECTED, STATE_LISTEN));
+        assertTrue(state.compareAndSet(STATE_CONNECTING, STATE_CONNECTED));
+        assertEquals(STATE_CONNECTED, state.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compareAndSetThrowsOnInvalidTransition() {
+        new ConnectionState((from, to) -> {
+        }).compareAndSet(STATE_NONE, STATE_CONNECTED);
+    }
+}
@@ -0,0 +1,69 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectorTest {
+
+    private static InetAddress address(String literal) throws IOException {
+        return InetAddress.getByName(literal);
+    }
+
+    @Test
+    public void interleavesAddressFamilies() throws IOException {
+        List<InetAddress> ordered = Connector.interleave(new InetAddress[]{
+                address("::1"), address("::2"), address("::3"), address("10.0.0.1"), address("10.0.0.2")});
+
+        assertEquals(address("::1"), ordered.get(0));
+        assertEquals(address("10.0.0.1"), ordered.get(1));
+        assertEquals(address("::2"), ordered.get(2));
+        assertEquals(address("10.0.0.2"), ordered.get(3));
+        assertEquals(address("::3"), ordered.get(4));
+    }
+
+    @Test
+    public void connectsToListeningPort() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, address("127.0.0.1"))) {
+            Connector connector = new Connector("127.0.0.1", server.getLocalPort(), 1000, ThreadMode.PLATFORM);
+            try (Socket socket = connector.connect()) {
+                assertTrue(socket.isConnected());
+                assertEquals(server.getLocalPort(), socket.getPort());
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsFastWhenRefused() throws IOException {
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 1, address("127.0.0.1"))) {
+            port = server.getLocalPort();
+        }
+        long start = System.nanoTime();
+        try {
+            new Connector("127.0.0.1", port, 5000, ThreadMode.PLATFORM).connect();
+        } finally {
+            // A refused connect must not wait for the timeout
+            assertTrue(System.nanoTime() - start < 4_000_000_000L);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void cancelledBeforeConnectThrows() throws IOException {
+        Connector connector = new Connector("localhost", 1, 5000, ThreadMode.PLATFORM);
+        connector.cancel();
+        connector.connect();
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void unknownHostFails() throws IOException {
+        new Connector("no.such.host.invalid", 1, 5000, ThreadMode.PLATFORM).connect();
+    }
+}
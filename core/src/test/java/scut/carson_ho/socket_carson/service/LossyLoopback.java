@@ -0,0 +1,95 @@
+package scut.carson_ho.socket_carson.service;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import scut.carson_ho.socket_carson.service.metrics.MetricsSnapshot;
+
+/**
+ * In-memory datagram transport between two endpoints that drops a share of
+ * the datagrams and delays the rest by up to a millisecond, which also
+ * reorders them. Deliveries run on one thread, like a UdpReceiver.
+ */
+class LossyLoopback implements SocketService {
+
+    private final String mAddress;
+    private final double mDropRate;
+    private final Random mRandom;
+    private final ScheduledExecutorService mWire;
+    private LossyLoopback mRemote;
+    private volatile BinaryMessageListener mListener;
+
+    LossyLoopback(String address, double dropRate, long seed, ScheduledExecutorService wire) {
+        mAddress = address;
+        mDropRate = dropRate;
+        mRandom = new Random(seed);
+        mWire = wire;
+    }
+
+    static void link(LossyLoopback a, LossyLoopback b) {
+        a.mRemote = b;
+        b.mRemote = a;
+    }
+
+    @Override
+    public void setReceiveMessageListener(ReceiveMessageListener receiveMessageListener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setBinaryMessageListener(BinaryMessageListener binaryMessageListener) {
+        mListener = binaryMessageListener;
+    }
+
+    @Override
+    public void setServiceListener(ServiceListener serviceListener) {
+    }
+
+    @Override
+    public int getState() {
+        return STATE_LISTEN;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void connect(String ip, int port) {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void write(byte[] out, String ip) {
+        long delayMicros;
+        synchronized (mRandom) {
+            if (mRandom.nextDouble() < mDropRate) {
+                return;
+            }
+            delayMicros = mRandom.nextInt(1000);
+        }
+        byte[] copy = out.clone();
+        LossyLoopback remote = mRemote;
+        mWire.schedule(() -> {
+            BinaryMessageListener listener = remote.mListener;
+            if (listener != null) {
+                listener.onReceived(mAddress, ByteBuffer.wrap(copy).asReadOnlyBuffer());
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void multiWrite(byte[] out) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,33 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MulticastConfigTest {
+
+    @Test
+    public void acceptsIpv4AndIpv6Groups() {
+        MulticastConfig config = new MulticastConfig();
+        assertEquals(MulticastConfig.DEFAULT_GROUP, config.getGroup());
+
+        assertEquals("224.0.0.251", config.setGroup("224.0.0.251").getGroup());
+        assertEquals("ff02::fb", config.setGroup("ff02::fb").getGroup());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLimitedBroadcast() {
+        new MulticastConfig().setGroup("255.255.255.255");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHostNames() {
+        // Would otherwise be a DNS lookup on the caller's thread
+        MulticastConfig.parse("example.com");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTimeToLiveAbove255() {
+        new MulticastConfig().setTimeToLive(256);
+    }
+}
@@ -0,0 +1,38 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void delayGrowsExponentiallyUpToTheMaximum() {
+        ReconnectPolicy policy = new ReconnectPolicy()
+                .setInitialDelayMillis(100)
+                .setMaxDelayMillis(1000)
+                .setJitter(0);
+        Random random = new Random(1);
+
+        assertEquals(100, policy.getDelayMillis(0, random));
+        assertEquals(200, policy.getDelayMillis(1, random));
+        assertEquals(800, policy.getDelayMillis(3, random));
+        assertEquals(1000, policy.getDelayMillis(4, random));
+        assertEquals(1000, policy.getDelayMillis(100, random));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        ReconnectPolicy policy = new ReconnectPolicy()
+                .setInitialDelayMillis(1000)
+                .setJitter(0.5);
+        Random random = new Random(1);
+
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelayMillis(0, random);
+            assertTrue(delay >= 500 && delay <= 1000);
+        }
+    }
+}
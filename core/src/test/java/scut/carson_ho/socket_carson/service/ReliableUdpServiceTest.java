@@ -0,0 +1,151 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReliableUdpServiceTest {
+
+    private static final double DROP_RATE = 0.2;
+    private static final int MESSAGES = 1000;
+
+    private ScheduledExecutorService mWire;
+    private ReliableUdpService mSender;
+    private ReliableUdpService mReceiver;
+
+    @Before
+    public void setUp() {
+        mWire = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mSender.stop();
+        mReceiver.stop();
+        mWire.shutdownNow();
+    }
+
+    private void link(double dropRate) {
+        LossyLoopback a = new LossyLoopback("sender", dropRate, 1, mWire);
+        LossyLoopback b = new LossyLoopback("receiver", dropRate, 2, mWire);
+        LossyLoopback.link(a, b);
+        mSender = new ReliableUdpService(a);
+        mReceiver = new ReliableUdpService(b);
+    }
+
+    private static byte[] message(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    @Test
+    public void ordered_deliversEverythingInOrderDespiteLoss() throws Exception {
+        link(DROP_RATE);
+        List<Integer> received = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(MESSAGES);
+        mReceiver.setBinaryMessageListener((peer, message) -> {
+            received.add(message.getInt());
+            done.countDown();
+        });
+
+        for (int i = 0; i < MESSAGES; i++) {
+            mSender.write(message(i), "receiver");
+        }
+
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+        assertTrue(mSender.getRetransmitCount() > 0);
+        assertTrue(mSender.getSmoothedRttMicros("receiver") > 0);
+    }
+
+    @Test
+    public void unordered_deliversEveryMessageOnce() throws Exception {
+        link(DROP_RATE);
+        mSender.setOrdered(false);
+        BitSet received = new BitSet();
+        CountDownLatch done = new CountDownLatch(MESSAGES);
+        mReceiver.setBinaryMessageListener((peer, message) -> {
+            int i = message.getInt();
+            assertFalse(received.get(i));
+            received.set(i);
+            done.countDown();
+        });
+
+        for (int i = 0; i < MESSAGES; i++) {
+            mSender.write(message(i), "receiver");
+        }
+
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(MESSAGES, received.cardinality());
+        assertEquals(MESSAGES, mReceiver.getDeliveredCount());
+    }
+
+    @Test
+    public void idlePeersAreForgottenAndTheirTrafficKept() throws Exception {
+        link(0);
+        mSender.setPeerIdleTimeout(100);
+        mReceiver.setPeerIdleTimeout(100);
+        List<Integer> received = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        mReceiver.setBinaryMessageListener((peer, message) -> {
+            received.add(message.getInt());
+            done.countDown();
+        });
+
+        mSender.write(message(0), "receiver");
+        mSender.multiWrite(message(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mSender.getMetrics().getConnections().isEmpty()
+                || !mReceiver.getMetrics().getConnections().isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        assertEquals(2, mSender.getMetrics().getMessagesOut());
+        assertEquals(2, mReceiver.getMetrics().getMessagesIn());
+
+        // Both ends start over
+        mSender.write(message(2), "receiver");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, received.size());
+        assertEquals(2, (int) received.get(2));
+    }
+
+    @Test
+    public void silentPeerIsReported() throws Exception {
+        link(1.0);
+        mSender.setMaxRetransmits(2);
+        CountDownLatch error = new CountDownLatch(1);
+        mSender.setServiceListener(new SocketService.ServiceListener() {
+            @Override
+            public void onStateChanged(int state) {
+            }
+
+            @Override
+            public void onDeviceConnected(String peer) {
+            }
+
+            @Override
+            public void onError(String message) {
+                error.countDown();
+            }
+        });
+
+        mSender.write(message(0), "receiver");
+
+        // 0.5 s initial timeout, doubled twice
+        assertTrue(error.await(10, TimeUnit.SECONDS));
+        assertEquals(2, mSender.getRetransmitCount());
+    }
+}
@@ -0,0 +1,80 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SocketLogTest {
+
+    private final List<String> mLogged = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        SocketLog.setSink(null);
+        SocketLog.setLevel(SocketLog.DEBUG);
+        SocketLog.setPayloadDumpLimit(0);
+    }
+
+    @Test
+    public void patternIsFilledInOrder() {
+        assertEquals("a: 42 bytes", SocketLog.format("{}: {} bytes", "a", 42L));
+        assertEquals("no args", SocketLog.format("no args", null, null));
+        // Only two arguments are filled in
+        assertEquals("x y {}", SocketLog.format("{} {} {}", "x", "y"));
+    }
+
+    @Test
+    public void messagesBelowTheLevelNeverReachTheSink() {
+        SocketLog.setSink((priority, tag, msg, tr) -> mLogged.add(msg));
+        SocketLog.setLevel(SocketLog.INFO);
+
+        SocketLog.d("T", "{} bytes", 10);
+        SocketLog.w("T", "dropped {}", 3);
+        SocketLog.setLevel(SocketLog.DEBUG);
+        SocketLog.d("T", "{} bytes", 10);
+
+        assertEquals(2, mLogged.size());
+        assertEquals("dropped 3", mLogged.get(0));
+        assertEquals("10 bytes", mLogged.get(1));
+    }
+
+    @Test
+    public void warningsKeepTheirThrowable() {
+        List<Throwable> thrown = new ArrayList<>();
+        SocketLog.setSink((priority, tag, msg, tr) -> {
+            mLogged.add(msg);
+            thrown.add(tr);
+        });
+        IOException e = new IOException("bad");
+
+        SocketLog.w("T", "datagram from {} dropped", "peer", e);
+        SocketLog.w("T", "{} threads, using {}", "VIRTUAL", "PLATFORM");
+
+        assertEquals("datagram from peer dropped", mLogged.get(0));
+        assertSame(e, thrown.get(0));
+        assertEquals("VIRTUAL threads, using PLATFORM", mLogged.get(1));
+        assertNull(thrown.get(1));
+    }
+
+    @Test
+    public void payloadDumpsAreOptInAndLimited() {
+        SocketLog.setSink((priority, tag, msg, tr) -> mLogged.add(msg));
+        SocketLog.setLevel(SocketLog.VERBOSE);
+        ByteBuffer message = ByteBuffer.wrap(new byte[]{0, 1, (byte) 0xab, 3, 4});
+        message.position(1);
+
+        SocketLog.dumpReceived("T", "peer", message);
+        assertTrue(mLogged.isEmpty());
+
+        SocketLog.setPayloadDumpLimit(2);
+        SocketLog.dumpReceived("T", "peer", message);
+        assertEquals("4 bytes from peer: 01 ab ...", mLogged.get(0));
+        assertEquals(1, message.position());
+    }
+}
@@ -0,0 +1,128 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import static org.junit.Assert.*;
+
+public class TlsConnectionTest {
+
+    // Self-signed for CN=localhost and 127.0.0.1, see the benchmarks' TlsHandshakeBenchmark
+    private static TlsConfig loadConfig() throws IOException {
+        try (InputStream in = TlsConnectionTest.class.getResourceAsStream("/tls/test.p12")) {
+            return TlsConfig.fromPkcs12(in, "changeit".toCharArray());
+        }
+    }
+
+    /**
+     * Accept one connection, echo one byte and return whether the server
+     * side resumed.
+     */
+    private static Future<Boolean> echoOnce(ExecutorService executor, ServerSocket server, TlsConfig config) {
+        return executor.submit(() -> {
+            try (Socket socket = server.accept()) {
+                TlsConnection tls = new TlsConnection(socket, config.createServerEngine(), 5000);
+                tls.handshake();
+                tls.getOutputStream().write(tls.getInputStream().read());
+                tls.getOutputStream().flush();
+                // Wait for the client to close
+                assertEquals(-1, tls.getInputStream().read());
+                return tls.isResumed();
+            }
+        });
+    }
+
+    private static TlsConnection connect(ServerSocket server, TlsConfig config) throws IOException {
+        Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        TlsConnection tls = new TlsConnection(socket,
+                config.createClientEngine("127.0.0.1", server.getLocalPort()), 5000);
+        tls.handshake();
+        return tls;
+    }
+
+    @Test
+    public void reconnectResumesSession() throws Exception {
+        TlsConfig config = loadConfig();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            for (int i = 0; i < 2; i++) {
+                Future<Boolean> serverResumed = echoOnce(executor, server, config);
+                TlsConnection tls = connect(server, config);
+                tls.getOutputStream().write(42);
+                tls.getOutputStream().flush();
+                // Also takes in the session ticket of TLS 1.3
+                assertEquals(42, tls.getInputStream().read());
+                tls.close();
+
+                boolean resumed = i > 0;
+                assertEquals(resumed, tls.isResumed());
+                assertEquals(resumed, serverResumed.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void largeWritesArriveWhole() throws Exception {
+        TlsConfig config = loadConfig();
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            Future<byte[]> received = executor.submit(() -> {
+                try (Socket socket = server.accept()) {
+                    TlsConnection tls = new TlsConnection(socket, config.createServerEngine(), 5000);
+                    tls.handshake();
+                    byte[] buffer = new byte[data.length];
+                    int n = 0;
+                    while (n < buffer.length) {
+                        int r = tls.getInputStream().read(buffer, n, buffer.length - n);
+                        assertTrue(r > 0);
+                        n += r;
+                    }
+                    return buffer;
+                }
+            });
+            TlsConnection tls = connect(server, config);
+            tls.getOutputStream().write(data);
+            tls.getOutputStream().flush();
+            assertArrayEquals(data, received.get());
+            tls.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = SSLException.class)
+    public void untrustedServerFails() throws Exception {
+        TlsConfig config = loadConfig();
+        // Trusts the platform's CAs only, not the self-signed test certificate
+        TlsConfig client = new TlsConfig(SSLContext.getDefault());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            executor.submit(() -> {
+                try (Socket socket = server.accept()) {
+                    new TlsConnection(socket, config.createServerEngine(), 5000).handshake();
+                }
+                return null;
+            });
+            connect(server, client);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
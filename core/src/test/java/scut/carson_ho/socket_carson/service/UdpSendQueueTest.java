@@ -0,0 +1,48 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.*;
+
+public class UdpSendQueueTest {
+
+    @Test
+    public void nullHostGoesToLoopbackAndBadHostsAreDroppedByTheCaller() throws Exception {
+        try (DatagramChannel receiver = DatagramChannel.open()) {
+            receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiver.configureBlocking(false);
+            int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+            UdpSendQueue queue = new UdpSendQueue(port);
+            try {
+                assertFalse(queue.offer(new byte[]{1}, "no.such.host.invalid"));
+                assertTrue(queue.offer(new byte[]{2}, null));
+                assertTrue(queue.offer(new byte[]{3}, null));
+
+                ByteBuffer buffer = ByteBuffer.allocate(16);
+                for (int expected = 2; expected <= 3; expected++) {
+                    buffer.clear();
+                    SocketAddress source = null;
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (source == null && System.currentTimeMillis() < deadline) {
+                        source = receiver.receive(buffer);
+                        if (source == null) {
+                            Thread.sleep(10);
+                        }
+                    }
+                    assertNotNull("datagram " + expected + " not received", source);
+                    buffer.flip();
+                    assertEquals(expected, buffer.get());
+                }
+                assertEquals(1, queue.getErrorCount());
+            } finally {
+                queue.close();
+            }
+        }
+    }
+}
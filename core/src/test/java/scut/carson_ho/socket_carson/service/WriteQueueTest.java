@@ -0,0 +1,58 @@
+package scut.carson_ho.socket_carson.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteQueueTest {
+
+    private static final byte[] A = {1};
+    private static final byte[] B = {2};
+    private static final byte[] C = {3};
+
+    @Test
+    public void dropOldestKeepsTheNewestMessages() throws InterruptedException {
+        WriteQueue queue = new WriteQueue(2, WriteQueue.BackpressurePolicy.DROP_OLDEST);
+        assertTrue(queue.offer(A));
+        assertTrue(queue.offer(B));
+        assertTrue(queue.offer(C));
+
+        List<byte[]> batch = new ArrayList<>();
+        queue.takeBatch(batch, 10);
+        assertEquals(2, batch.size());
+        assertSame(B, batch.get(0));
+        assertSame(C, batch.get(1));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void failFastRejectsWhenFull() {
+        WriteQueue queue = new WriteQueue(1, WriteQueue.BackpressurePolicy.FAIL_FAST);
+        assertTrue(queue.offer(A));
+        assertFalse(queue.offer(B));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void batchCarriesTheOfferTimes() throws InterruptedException {
+        WriteQueue queue = new WriteQueue(4, WriteQueue.BackpressurePolicy.BLOCK);
+        long before = System.nanoTime();
+        queue.offer(A);
+        queue.offer(B);
+        long after = System.nanoTime();
+
+        List<byte[]> batch = new ArrayList<>();
+        long[] offerNanos = new long[4];
+        queue.takeBatch(batch, offerNanos, 1);
+        queue.takeBatch(batch, offerNanos, 4);
+
+        assertEquals(2, batch.size());
+        assertTrue(offerNanos[0] - before >= 0 && after - offerNanos[1] >= 0);
+        assertTrue(offerNanos[1] - offerNanos[0] >= 0);
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,195 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeflateCompressionTest {
+
+    private static byte[] json(int records) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"sensor\",\"value\":").append(i * 7).append("},");
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] roundTrip(DeflateCompression.Compressor compressor,
+                                    DeflateCompression.Decompressor decompressor, byte[] message) throws IOException {
+        int length = compressor.compress(message, 0, message.length);
+        return toArray(decompressor.decompress(Arrays.copyOf(compressor.getOutput(), length), 0, length));
+    }
+
+    @Test
+    public void largeMessagesShrinkAndComeBack() throws IOException {
+        DeflateCompression compression = new DeflateCompression();
+        DeflateCompression.Compressor compressor = compression.newCompressor();
+        DeflateCompression.Decompressor decompressor = compression.newDecompressor();
+        // The same pair serves every message of a connection
+        for (int records : new int[]{100, 10, 1000}) {
+            byte[] message = json(records);
+            int length = compressor.compress(message, 0, message.length);
+            assertTrue(compressor.isDeflated());
+            assertEquals(DeflateCompression.DEFLATE, compressor.getOutput()[0]);
+            assertTrue(length < message.length / 2);
+            assertArrayEquals(message, roundTrip(compressor, decompressor, message));
+        }
+    }
+
+    @Test
+    public void smallAndIncompressibleMessagesStayRaw() throws IOException {
+        DeflateCompression compression = new DeflateCompression();
+        DeflateCompression.Compressor compressor = compression.newCompressor();
+        DeflateCompression.Decompressor decompressor = compression.newDecompressor();
+
+        byte[] small = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+        assertEquals(small.length + 1, compressor.compress(small, 0, small.length));
+        assertFalse(compressor.isDeflated());
+        assertArrayEquals(small, roundTrip(compressor, decompressor, small));
+
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        assertEquals(random.length + 1, compressor.compress(random, 0, random.length));
+        assertFalse(compressor.isDeflated());
+        assertArrayEquals(random, roundTrip(compressor, decompressor, random));
+    }
+
+    @Test
+    public void dictionaryHelpsShortMessages() throws IOException {
+        byte[] dictionary = "{\"id\":,\"name\":\"sensor\",\"value\":}".getBytes(StandardCharsets.UTF_8);
+        byte[] message = json(3);
+        DeflateCompression plain = new DeflateCompression().setThreshold(0);
+        DeflateCompression preset = new DeflateCompression().setThreshold(0).setDictionary(dictionary);
+
+        int plainLength = plain.newCompressor().compress(message, 0, message.length);
+        DeflateCompression.Compressor compressor = preset.newCompressor();
+        assertTrue(compressor.compress(message, 0, message.length) < plainLength);
+        assertArrayEquals(message, roundTrip(compressor, preset.newDecompressor(), message));
+    }
+
+    @Test
+    public void messageThatDoesNotFitIsDeflatedBelowTheThreshold() throws IOException {
+        DeflateCompression compression = new DeflateCompression().setThreshold(Integer.MAX_VALUE);
+        DeflateCompression.Compressor compressor = compression.newCompressor();
+        byte[] message = json(20);
+
+        assertEquals(message.length + 1, compressor.compress(message, 0, message.length, message.length + 1));
+        assertFalse(compressor.isDeflated());
+
+        int length = compressor.compress(message, 0, message.length, message.length);
+        assertTrue(compressor.isDeflated());
+        assertTrue(length <= message.length);
+
+        // Not even deflated does it fit, so it goes out as it is
+        length = compressor.compress(message, 0, message.length, 10);
+        assertFalse(compressor.isDeflated());
+        assertEquals(message.length + 1, length);
+    }
+
+    @Test
+    public void messagesAreReadOnlyViews() throws IOException {
+        DeflateCompression compression = new DeflateCompression();
+        DeflateCompression.Compressor compressor = compression.newCompressor();
+        DeflateCompression.Decompressor decompressor = compression.newDecompressor();
+        for (byte[] message : new byte[][]{"raw".getBytes(StandardCharsets.UTF_8), json(50)}) {
+            int length = compressor.compress(message, 0, message.length);
+            ByteBuffer received = decompressor.decompress(compressor.getOutput(), 0, length);
+            assertTrue(received.isReadOnly());
+            assertEquals(message.length, received.remaining());
+        }
+    }
+
+    @Test
+    public void directBuffersDecompress() throws IOException {
+        DeflateCompression compression = new DeflateCompression();
+        DeflateCompression.Compressor compressor = compression.newCompressor();
+        byte[] message = json(50);
+        int length = compressor.compress(message, 0, message.length);
+        ByteBuffer frame = ByteBuffer.allocateDirect(length);
+        frame.put(compressor.getOutput(), 0, length).flip();
+
+        assertArrayEquals(message, toArray(compression.newDecompressor().decompress(frame)));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    public void badFramesAreRejected() throws IOException {
+        DeflateCompression compression = new DeflateCompression().setMaxMessageSize(1000);
+        DeflateCompression.Compressor compressor = compression.newCompressor();
+        DeflateCompression.Decompressor decompressor = compression.newDecompressor();
+        byte[] big = json(100);
+        int length = compressor.compress(big, 0, big.length);
+        byte[] frame = Arrays.copyOf(compressor.getOutput(), length);
+
+        byte[][] bad = {
+                {},
+                {7, 1, 2},
+                Arrays.copyOf(frame, length / 2),
+                // Inflates beyond the maximum message size
+                frame,
+        };
+        for (byte[] b : bad) {
+            try {
+                decompressor.decompress(b, 0, b.length);
+                fail("accepted " + Arrays.toString(b));
+            } catch (IOException expected) {
+                // Each failure leaves the decompressor usable
+            }
+        }
+        byte[] message = json(5);
+        assertArrayEquals(message, roundTrip(compressor, decompressor, message));
+    }
+
+    @Test
+    public void helloNeedsTheSameDictionary() {
+        byte[] dictionary = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+        DeflateCompression plain = new DeflateCompression();
+        DeflateCompression preset = new DeflateCompression().setDictionary(dictionary);
+        byte[] hello = preset.newHello();
+
+        assertTrue(DeflateCompression.isControlFrame(hello, 0, hello.length));
+        assertTrue(new DeflateCompression().setDictionary(dictionary).acceptsHello(hello, 0, hello.length));
+        assertFalse(plain.acceptsHello(hello, 0, hello.length));
+        assertFalse(DeflateCompression.isAccept(hello, 0, hello.length));
+
+        byte[] accept = DeflateCompression.newAccept();
+        assertTrue(DeflateCompression.isControlFrame(accept, 0, accept.length));
+        assertTrue(DeflateCompression.isAccept(accept, 0, accept.length));
+        assertFalse(plain.acceptsHello(accept, 0, accept.length));
+
+        // A message of the application is never taken for one
+        byte[] message = json(1);
+        assertFalse(DeflateCompression.isControlFrame(message, 0, message.length));
+    }
+
+    @Test
+    public void datagramsCarryAVersionedHeader() throws IOException {
+        DeflateCompression compression = new DeflateCompression();
+        DeflateCompression.Compressor compressor = compression.newDatagramCompressor();
+        DeflateCompression.Decompressor decompressor = compression.newDecompressor();
+        for (byte[] message : new byte[][]{"raw".getBytes(StandardCharsets.UTF_8), json(50)}) {
+            int length = compressor.compress(message, 0, message.length);
+            ByteBuffer datagram = ByteBuffer.wrap(Arrays.copyOf(compressor.getOutput(), length));
+            assertTrue(DeflateCompression.isFlaggedDatagram(datagram));
+            assertEquals(compressor.isDeflated() ? DeflateCompression.DEFLATE : DeflateCompression.RAW,
+                    DeflateCompression.datagramFlag(datagram));
+            assertEquals(0, datagram.position());
+
+            datagram.position(DeflateCompression.DATAGRAM_HEADER_SIZE);
+            assertArrayEquals(message, toArray(decompressor.decompress(datagram)));
+        }
+        assertFalse(DeflateCompression.isFlaggedDatagram(ByteBuffer.wrap(json(1))));
+    }
+}
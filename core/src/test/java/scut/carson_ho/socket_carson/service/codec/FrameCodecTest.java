@@ -0,0 +1,112 @@
+package scut.carson_ho.socket_carson.service.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    private static byte[] encode(FrameCodec codec, String... messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : messages) {
+            for (ByteBuffer part : codec.encode(ByteBuffer.wrap(message.getBytes()))) {
+                out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> decodeInChunks(FrameCodec codec, byte[] stream, int chunk) throws Exception {
+        List<String> frames = new ArrayList<>();
+        FrameDecoder decoder = codec.newDecoder();
+        for (int i = 0; i < stream.length; i += chunk) {
+            decoder.feed(ByteBuffer.wrap(stream, i, Math.min(chunk, stream.length - i)));
+            decoder.decode((array, offset, length) -> frames.add(new String(array, offset, length)));
+        }
+        assertEquals(0, decoder.buffered());
+        return frames;
+    }
+
+    @Test
+    public void varint_rebuildsSplitAndMergedFrames() throws Exception {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        FrameCodec codec = new VarintFrameCodec();
+        byte[] stream = encode(codec, "a", "", "hello", big.toString(), "b");
+        for (int chunk : new int[]{1, 3, 7, 4096, stream.length}) {
+            List<String> frames = decodeInChunks(codec, stream, chunk);
+            assertEquals(5, frames.size());
+            assertEquals("a", frames.get(0));
+            assertEquals("", frames.get(1));
+            assertEquals("hello", frames.get(2));
+            assertEquals(big.toString(), frames.get(3));
+            assertEquals("b", frames.get(4));
+        }
+    }
+
+    @Test
+    public void delimiter_rebuildsSplitAndMergedFrames() throws Exception {
+        FrameCodec codec = new DelimiterFrameCodec();
+        byte[] stream = encode(codec, "x", "second line", "y");
+        for (int chunk : new int[]{1, 2, 5, stream.length}) {
+            List<String> frames = decodeInChunks(codec, stream, chunk);
+            assertEquals(3, frames.size());
+            assertEquals("x", frames.get(0));
+            assertEquals("second line", frames.get(1));
+            assertEquals("y", frames.get(2));
+        }
+    }
+
+    @Test(expected = FrameTooLongException.class)
+    public void varint_rejectsOversizedFrame() throws Exception {
+        FrameCodec codec = new VarintFrameCodec(16);
+        FrameDecoder decoder = codec.newDecoder();
+        decoder.feed(ByteBuffer.wrap(encode(codec, "this is longer than sixteen bytes")));
+        decoder.decode((array, offset, length) -> fail());
+    }
+
+    @Test
+    public void encodeIntoBuffer_matchesGatheringEncode() throws Exception {
+        byte[] big = new byte[300];
+        for (FrameCodec codec : new FrameCodec[]{new VarintFrameCodec(), new DelimiterFrameCodec()}) {
+            ByteBuffer out = ByteBuffer.allocate(1024);
+            for (byte[] payload : new byte[][]{"hi".getBytes(), new byte[0]}) {
+                codec.encode(payload, 0, payload.length, out);
+                assertEquals(payload.length + codec.overhead(payload.length), out.position());
+                assertArrayEquals(encode(codec, new String(payload)), Arrays.copyOf(out.array(), out.position()));
+                out.clear();
+            }
+        }
+        FrameCodec codec = new VarintFrameCodec();
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        codec.encode(big, 0, big.length, out);
+        assertEquals(2, codec.overhead(big.length));
+        assertEquals(big.length + 2, out.position());
+    }
+
+    @Test
+    public void frameView_coversTheFrame() throws Exception {
+        FrameCodec codec = new VarintFrameCodec();
+        FrameDecoder decoder = codec.newDecoder();
+        decoder.feed(ByteBuffer.wrap(encode(codec, "one", "three")));
+        List<String> frames = new ArrayList<>();
+        decoder.decode((array, offset, length) -> {
+            ByteBuffer view = decoder.frameView(offset, length);
+            assertTrue(view.isReadOnly());
+            byte[] copy = new byte[view.remaining()];
+            view.get(copy);
+            frames.add(new String(copy));
+        });
+        assertEquals(2, frames.size());
+        assertEquals("one", frames.get(0));
+        assertEquals("three", frames.get(1));
+    }
+}
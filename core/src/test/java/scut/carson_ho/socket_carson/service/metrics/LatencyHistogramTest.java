@@ -0,0 +1,56 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void everyValueFallsIntoABucketThatHoldsIt() {
+        for (long value = 0; value < 1_000_000; value += 7) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.highestValue(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1_000_000, snapshot.getMaxNanos());
+        assertEquals(500_500, snapshot.getMeanNanos());
+        assertWithin(500_000, snapshot.getPercentileNanos(50));
+        assertWithin(990_000, snapshot.getPercentileNanos(99));
+        assertEquals(1_000_000, snapshot.getPercentileNanos(100));
+    }
+
+    @Test
+    public void snapshotsAndHistogramsAddUp() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(1000);
+        b.record(5000);
+        b.record(9000);
+
+        LatencyHistogram.Snapshot sum = a.snapshot().plus(b.snapshot());
+        a.add(b);
+
+        assertEquals(3, sum.getCount());
+        assertEquals(9000, sum.getMaxNanos());
+        assertEquals(sum.getPercentileNanos(50), a.snapshot().getPercentileNanos(50));
+        assertEquals(sum.getMeanNanos(), a.snapshot().getMeanNanos());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 12.5% of " + expected,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
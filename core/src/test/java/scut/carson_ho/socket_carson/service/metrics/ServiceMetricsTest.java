@@ -0,0 +1,65 @@
+package scut.carson_ho.socket_carson.service.metrics;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ServiceMetricsTest {
+
+    @Test
+    public void closedConnectionsStayInTheTotals() {
+        ServiceMetrics metrics = new ServiceMetrics();
+        TransportMetrics closed = metrics.openConnection();
+        closed.recordBytesOut(100);
+        closed.recordMessageOut(2000);
+        metrics.closeConnection(closed);
+        TransportMetrics open = metrics.openConnection();
+        open.recordBytesIn(40);
+        open.recordMessageIn(1000);
+        open.recordDropped();
+
+        MetricsSnapshot snapshot = metrics.snapshot("service", 0,
+                Collections.singletonList(open.snapshot("2", "10.0.0.2", 3)));
+
+        assertEquals(100, snapshot.getBytesOut());
+        assertEquals(40, snapshot.getBytesIn());
+        assertEquals(1, snapshot.getMessagesOut());
+        assertEquals(1, snapshot.getMessagesIn());
+        assertEquals(1, snapshot.getDroppedCount());
+        assertEquals(3, snapshot.getQueueDepth());
+        assertEquals(2, snapshot.getConnectionsOpened());
+        assertEquals(1, snapshot.getConnections().size());
+
+        Map<String, Long> map = snapshot.toMap();
+        assertEquals(Long.valueOf(100), map.get("bytes_out"));
+        assertEquals(Long.valueOf(40), map.get("connection.2.bytes_in"));
+        assertEquals(Long.valueOf(2), map.get("send_latency_p99_us"));
+    }
+
+    @Test
+    public void stripedCounterCountsEveryThread() throws InterruptedException {
+        for (boolean striped : new boolean[]{true, false}) {
+            countEveryThread(new StripedCounter(striped));
+        }
+    }
+
+    private static void countEveryThread(final StripedCounter counter) throws InterruptedException {
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    counter.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        assertEquals(threads * 100_000L, counter.sum());
+    }
+}